@@ -0,0 +1,61 @@
+package compiler;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+import org.antlr.v4.runtime.*;
+import org.openjdk.jmh.annotations.*;
+import svm.*;
+
+/*
+ * JMH benchmark of the execution engines of ExecuteVM, with and without
+ * superinstruction fusion: the JMH counterpart of EngineBenchmark, with forked
+ * JVMs and confidence intervals to tell the engines apart from the noise.
+ *   java -jar jmh/target/benchmarks.jar ExecutionBenchmark [JMH options]
+ * from sln/Fool-Compiler, as PhaseBenchmark.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(3)
+public class ExecutionBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Input {
+
+    	@Param({"bench/quicksort-bench.fool", "bench/arith-bench.fool", "bench/tailcall-bench.fool"})
+    	public String input;
+
+    	@Param({"SWITCH", "THREADED", "TIERED"})
+    	public ExecuteVM.Engine engine;
+
+    	@Param({"false", "true"})
+    	public boolean fusion;
+
+    	Program program;
+
+    	@Setup(Level.Trial)
+    	public void prepare() throws Exception {
+    		Assembler assembler = new Assembler();
+    		assembler.fusion = fusion;
+    		Compiler.generate(CharStreams.fromFileName(input)).assemble(assembler);
+    		program = new Program(assembler.link());
+    	}
+    }
+
+    @State(Scope.Thread)
+    public static class Machine {
+    	ExecuteVM vm;
+    	@Setup(Level.Invocation)
+    	public void prepare(Input in) {
+    		vm = new ExecuteVM(in.program);
+    		vm.setOutput(new PrintStream(OutputStream.nullOutputStream()));
+    	}
+    }
+
+    @Benchmark
+    public ExecuteVM run(Input in, Machine m) {
+    	m.vm.cpu(in.engine);
+    	return m.vm;
+    }
+}
@@ -0,0 +1,223 @@
+package compiler;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.concurrent.TimeUnit;
+import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.*;
+import compiler.lib.*;
+import svm.*;
+
+/*
+ * JMH benchmarks of each phase of the compiler and of the VM on its own: the input
+ * of every operation is prepared untimed (@Setup), for instance a fresh AST for
+ * symtable, which enriches it.
+ * Build with "mvn package" in sln/Fool-Compiler and run from there (the inputs are
+ * read relative to it):
+ *   java -jar jmh/target/benchmarks.jar [JMH options]
+ * main adds the GC profiler of JMH (-prof gc): bytes allocated per operation and
+ * allocation rate next to the throughput of every phase. The inputs, -p input=...,
+ * are FOOL files, synthetic:n (the program of CodeGenBenchmark with n functions) or
+ * workload:parameters (a program of WorkloadGenerator, the parameters separated by
+ * ';' instead of ','). examples/bankloan.fool is not among the defaults: it uses
+ * extends, which the grammar does not have.
+ * The GC profiler counts the allocations of the whole iteration: for the phases with
+ * a fresh input for every operation (symtable, typecheck, the passes, run) they include
+ * those of the @Setup, to be subtracted with the phase before (for instance ast for
+ * symtable).
+ * With -rf csv -rff file the results are written to a file, to be compared between
+ * versions.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PhaseBenchmark {
+
+    public static void main(String[] args) throws Exception {
+    	CommandLineOptions options = new CommandLineOptions(args);
+    	ChainedOptionsBuilder builder = new OptionsBuilder().parent(options).addProfiler(GCProfiler.class);
+    	if (options.getIncludes().isEmpty()) builder.include(PhaseBenchmark.class.getName());
+    	new Runner(builder.build()).run();
+    }
+
+    // the input, and what the phases after the first take from it
+    @State(Scope.Benchmark)
+    public static class Input {
+
+    	@Param({"quicksort.fool", "classe.fool", "bench/quicksort-bench.fool", "bench/arith-bench.fool", "synthetic:1000", "synthetic:4000"})
+    	public String input;
+
+    	String source;
+    	ParseTree tree;   // for ast
+    	Node optimized;   // AST after Compiler.passes, for codegen
+    	Code code;        // for link
+    	String assembly;  // for assemble
+    	Program program;  // for run
+
+    	@Setup(Level.Trial)
+    	public void prepare() throws Exception {
+    		source = input.startsWith("synthetic:") ? CodeGenBenchmark.program(Integer.parseInt(input.substring("synthetic:".length()))) :
+    			input.startsWith("workload:") ? WorkloadGenerator.generate(input.substring("workload:".length()).replace(';', ',')) :
+    			Files.readString(Paths.get(input));
+    		tree = parse(CharStreams.fromString(source));
+    		optimized = optimized(source, Compiler.passes().size());
+    		code = Compiler.generate(CharStreams.fromString(source));
+    		assembly = code.toString();
+    		program = new Program(code.link(true));
+    	}
+    }
+
+    // the enriched AST after the first passes of Compiler.passes, in a new session
+    static Node optimized(String source, int passes) throws Exception {
+    	FOOLlib.reset();
+    	Node ast = Compiler.check(CharStreams.fromString(source));
+    	for (BaseASTVisitor<Node,?> pass : Compiler.passes().subList(0, passes)) ast = pass.visit(ast);
+    	return ast;
+    }
+
+    // the first stage of Compiler.parse, the inputs having no syntax errors
+    static ParseTree parse(CharStream chars) {
+    	FOOLParser parser = new FOOLParser(new CommonTokenStream(new FOOLLexer(chars)));
+    	parser.removeErrorListeners();
+    	parser.setErrorHandler(new BailErrorStrategy());
+    	parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+    	return parser.prog();
+    }
+
+    @State(Scope.Thread)
+    public static class Generated {
+    	Node ast;
+    	@Setup(Level.Invocation)
+    	public void prepare(Input in) {
+    		ast = new ASTGenerationSTVisitor().visit(in.tree);
+    	}
+    }
+
+    @State(Scope.Thread)
+    public static class Enriched {
+    	Node ast;
+    	@Setup(Level.Invocation)
+    	public void prepare(Input in) throws Exception {
+    		FOOLlib.reset(); // type errors are counted in the session
+    		ast = new ASTGenerationSTVisitor().visit(in.tree);
+    		new SymbolTableASTVisitor().visit(ast);
+    	}
+    }
+
+    // the checked AST before each pass: inlining, folding, dead code elimination, devirtualization
+
+    @State(Scope.Thread)
+    public static class Checked {
+    	Node ast;
+    	@Setup(Level.Invocation)
+    	public void prepare(Input in) throws Exception { ast = optimized(in.source, 0); }
+    }
+
+    @State(Scope.Thread)
+    public static class Inlined {
+    	Node ast;
+    	@Setup(Level.Invocation)
+    	public void prepare(Input in) throws Exception { ast = optimized(in.source, 1); }
+    }
+
+    @State(Scope.Thread)
+    public static class Folded {
+    	Node ast;
+    	@Setup(Level.Invocation)
+    	public void prepare(Input in) throws Exception { ast = optimized(in.source, 2); }
+    }
+
+    @State(Scope.Thread)
+    public static class Eliminated {
+    	Node ast;
+    	@Setup(Level.Invocation)
+    	public void prepare(Input in) throws Exception { ast = optimized(in.source, 3); }
+    }
+
+    @State(Scope.Thread)
+    public static class Session {
+    	@Setup(Level.Invocation)
+    	public void prepare() {
+    		FOOLlib.reset(); // the functions are collected again by every visit
+    	}
+    }
+
+    @State(Scope.Thread)
+    public static class Machine {
+    	ExecuteVM vm;
+    	@Setup(Level.Invocation)
+    	public void prepare(Input in) {
+    		vm = new ExecuteVM(in.program);
+    		vm.setOutput(new PrintStream(OutputStream.nullOutputStream()));
+    	}
+    }
+
+    @Benchmark
+    public ParseTree parse(Input in) {
+    	return parse(CharStreams.fromString(in.source));
+    }
+
+    @Benchmark
+    public Node ast(Input in) {
+    	return new ASTGenerationSTVisitor().visit(in.tree);
+    }
+
+    @Benchmark
+    public Node symtable(Generated g) {
+    	new SymbolTableASTVisitor().visit(g.ast);
+    	return g.ast;
+    }
+
+    @Benchmark
+    public Object typecheck(Enriched e) throws Exception {
+    	return new TypeCheckEASTVisitor().visit(e.ast);
+    }
+
+    @Benchmark
+    public Node inline(Checked c) {
+    	return new InliningASTVisitor().visit(c.ast);
+    }
+
+    @Benchmark
+    public Node fold(Inlined i) {
+    	return new ConstantFoldingASTVisitor().visit(i.ast);
+    }
+
+    @Benchmark
+    public Node dce(Folded f) {
+    	return new DeadCodeEliminationASTVisitor().visit(f.ast);
+    }
+
+    @Benchmark
+    public Node devirt(Eliminated e) {
+    	return new DevirtualizationASTVisitor().visit(e.ast);
+    }
+
+    @Benchmark
+    public Code codegen(Input in, Session s) {
+    	return new CodeGenerationASTVisitor().visit(in.optimized);
+    }
+
+    @Benchmark
+    public int[] link(Input in) {
+    	return in.code.link(true);
+    }
+
+    @Benchmark
+    public Object assemble(Input in) {
+    	return SVMParser.assemble(CharStreams.fromString(in.assembly), true);
+    }
+
+    @Benchmark
+    public ExecuteVM run(Machine m) {
+    	m.vm.cpu();
+    	return m.vm;
+    }
+}
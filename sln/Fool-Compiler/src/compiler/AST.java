@@ -74,6 +74,7 @@ public class AST {
 		List<Node> arglist = new ArrayList<Node>();
 		STentry entry;
 		int nl;
+		MethodNode target; // metodo della stessa classe chiamato direttamente, impostato dalla devirtualizzazione
 		CallNode(String i, List<Node> p) {id = i; arglist = p;}
 
 		@Override
@@ -209,6 +210,7 @@ public class AST {
 
 	public static abstract class DecNode extends Node{
 		protected TypeNode type;
+		boolean live = true; // false se eliminata dalla dead code elimination: il codice ne tiene solo il posto
 		protected TypeNode getType(){return type;}
 	}
 
@@ -217,6 +219,7 @@ public class AST {
 		String id;
 		List<FieldNode> fields = new ArrayList<>();
 		List<MethodNode> methods = new ArrayList<>();
+		STentry entry; // della dichiarazione, impostata dalla symbol table (per la dead code elimination)
 
 		public ClassNode(List<FieldNode> fields, List<MethodNode> methods, String id) {
 			this.fields = fields;
@@ -269,6 +272,9 @@ public class AST {
 		List<ParNode> parlist;
 		List<Node> declist;
 		Node exp;
+		int nl; // nesting level del corpo, impostato dalla symbol table
+		boolean display; // ha funzioni annidate: il suo frame e' nel display, a livello nl
+		STentry entry; // della dichiarazione, impostata dalla symbol table (per l'inlining)
 		FunNode(String i, TypeNode rt, List<ParNode> pl, List<Node> dl, Node e) {
 			id=i; this.type=rt; parlist=pl; declist=dl; exp=e;}
 
@@ -311,6 +317,7 @@ public class AST {
 	public static class VarNode extends DecNode {
 		String id;
 		Node exp;
+		STentry entry; // della dichiarazione, impostata dalla symbol table (per la propagazione delle costanti)
 		VarNode(String i, TypeNode t, Node v) {id = i; this.type = t; exp = v;}
 
 		@Override
@@ -335,6 +342,9 @@ public class AST {
 		List<Node> decList;
 		Node exp;
 		int offset = 0;
+		int nl; // nesting level del corpo, impostato dalla symbol table
+		boolean display; // ha funzioni annidate: il suo frame e' nel display, a livello nl
+		STentry entry; // nella virtual table, impostata dalla symbol table (per l'inlining)
 		
 		String label;
 		public MethodNode(String id, TypeNode retType, List<ParNode> parList, List<Node> decList, Node exp) {
@@ -383,6 +393,7 @@ public class AST {
 
 		STentry entry;
 		STentry methodEntry;
+		MethodNode target; // unico metodo che la chiamata puo' raggiungere, impostato dalla devirtualizzazione
 
 		int nestingLevel;
 
@@ -409,6 +420,48 @@ public class AST {
 		}
 	}
 
+	/**
+	 * lettura del campo di un oggetto, object.id: non ha sintassi, la introduce l'inlining
+	 * dei metodi al posto dei campi usati nel corpo
+	 */
+	public static class FieldAccessNode extends Node{
+
+		Node object;
+		String id;
+		STentry entry; // del campo, nella virtual table della classe
+
+		FieldAccessNode(Node object, String id, STentry entry) {
+			this.object = object;
+			this.id = id;
+			this.entry = entry;
+		}
+
+		@Override
+		public <S, E extends Exception> S accept(BaseASTVisitor<S, E> visitor) throws E {
+			return visitor.visitNode(this);
+		}
+	}
+
+	/**
+	 * accesso all'oggetto object, che fallisce se e' null, prima di valutare exp: non ha
+	 * sintassi, l'inlining lo mette davanti al corpo di un metodo al posto della chiamata
+	 */
+	public static class NullCheckNode extends Node{
+
+		Node object;
+		Node exp;
+
+		NullCheckNode(Node object, Node exp) {
+			this.object = object;
+			this.exp = exp;
+		}
+
+		@Override
+		public <S, E extends Exception> S accept(BaseASTVisitor<S, E> visitor) throws E {
+			return visitor.visitNode(this);
+		}
+	}
+
 	public static class NewNode extends Node{
 
 		String classId;
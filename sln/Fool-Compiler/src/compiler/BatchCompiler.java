@@ -0,0 +1,128 @@
+package compiler;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+import org.antlr.v4.runtime.*;
+import compiler.exc.*;
+import svm.*;
+
+/*
+ * Compiles all the .fool files of some directories (and their subdirectories) in
+ * parallel on a ForkJoin pool, each file.fool into the object file file.fool.svm.
+ * Usage: BatchCompiler [-threads n] [-check] [-quiet] dir...
+ * -threads n  size of the pool (default: available processors)
+ * -check      compiles without writing the object files
+ * -quiet      only the errors and the summary, no time per file
+ * Every compilation has its own CompilationSession, so no state is shared
+ * between the workers but the DFA caches of the ANTLR parsers.
+ */
+public class BatchCompiler {
+
+    public static void main(String[] args) throws Exception {
+    	int threads = Runtime.getRuntime().availableProcessors();
+    	boolean write = true, quiet = false;
+    	List<Path> files = new ArrayList<>();
+    	for (int a = 0; a < args.length; a++)
+    		switch (args[a]) {
+    			case "-threads": threads = Integer.parseInt(args[++a]); break;
+    			case "-check": write = false; break;
+    			case "-quiet": quiet = true; break;
+    			default:
+    				try (Stream<Path> walk = Files.walk(Paths.get(args[a]))) {
+    					walk.filter(f -> f.toString().endsWith(".fool") && Files.isRegularFile(f)).sorted().forEach(files::add);
+    				}
+    		}
+
+    	BatchCompiler batch = new BatchCompiler(files, write);
+    	ForkJoinPool pool = new ForkJoinPool(threads);
+    	long start = System.nanoTime();
+    	pool.invoke(batch.new Compile(0, files.size()));
+    	long wall = System.nanoTime() - start;
+    	pool.shutdown();
+
+    	long busy = 0;
+    	int failed = 0;
+    	for (Result r : batch.results) {
+    		busy += r.nanos;
+    		if (r.errors != 0) {
+    			failed++;
+    			System.out.print(r.diagnostics);
+    			System.out.println(r.file+": "+r.message);
+    		}
+    		if (!quiet) System.out.printf("%10.3f ms  %s%n", r.nanos/1e6, r.file);
+    	}
+    	System.out.printf("%d files, %d failed, %d threads: %.1f ms, %.1f files/s, %.3f ms/file, parallelism %.2f%n",
+    		files.size(), failed, threads, wall/1e6, files.size()/(wall/1e9),
+    		files.isEmpty() ? 0 : busy/1e6/files.size(), wall == 0 ? 0 : (double)busy/wall);
+    	if (failed > 0) System.exit(1);
+    }
+
+    static class Result {
+    	final Path file;
+    	long nanos;
+    	int errors = 0;       // front-end errors, -1 for other failures
+    	String message = "";
+    	String diagnostics = "";
+
+    	Result(Path file) {
+    		this.file = file;
+    	}
+    }
+
+    private final List<Path> files;
+    private final boolean write;
+    final Result[] results;
+
+    BatchCompiler(List<Path> files, boolean write) {
+    	this.files = files;
+    	this.write = write;
+    	this.results = new Result[files.size()];
+    }
+
+    // compiles the files from (included) to to (excluded), splitting the range down to single files
+    class Compile extends RecursiveAction {
+    	private static final long serialVersionUID = 1L;
+    	private final int from, to;
+
+    	Compile(int from, int to) {
+    		this.from = from;
+    		this.to = to;
+    	}
+
+    	@Override
+    	protected void compute() {
+    		if (to - from == 1) {
+    			results[from] = compile(files.get(from));
+    		} else if (to - from > 1) {
+    			int middle = (from + to) >>> 1;
+    			invokeAll(new Compile(from, middle), new Compile(middle, to));
+    		}
+    	}
+    }
+
+    Result compile(Path file) {
+    	Result result = new Result(file);
+    	ByteArrayOutputStream diagnostics = new ByteArrayOutputStream();
+    	long start = System.nanoTime();
+    	try {
+    		Code code = Compiler.generate(CharStreams.fromPath(file), new PrintStream(diagnostics, true, StandardCharsets.UTF_8));
+    		Assembler assembler = new Assembler();
+    		code.assemble(assembler);
+    		int[] program = assembler.link();
+    		if (write) ObjectFile.write(Paths.get(file+".svm"), program, assembler.getLabels(), assembler.getSourceMap());
+    	} catch (CompilationException e) {
+    		result.errors = e.errors;
+    		result.message = e.getMessage();
+    	} catch (IOException | RuntimeException e) { // the front end may fail on programs with errors
+    		result.errors = -1;
+    		result.message = e.toString();
+    	}
+    	result.nanos = System.nanoTime() - start;
+    	result.diagnostics = diagnostics.toString(StandardCharsets.UTF_8);
+    	return result;
+    }
+}
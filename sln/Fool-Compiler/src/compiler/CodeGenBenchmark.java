@@ -0,0 +1,55 @@
+package compiler;
+
+import java.util.*;
+import org.antlr.v4.runtime.*;
+import compiler.lib.*;
+import svm.*;
+
+/*
+ * Measures how code generation scales with the size of the program, on generated
+ * programs with an increasing number of functions.
+ * Usage: CodeGenBenchmark [functions [runs]]
+ * Sizes double from 1000 up to the given number of functions (default 16000).
+ * Only code generation and linking are timed, the front end runs once per size:
+ * with linear code emission the time per instruction stays roughly constant.
+ */
+public class CodeGenBenchmark {
+
+    static final int WARMUP = 3;
+
+    public static void main(String[] args) throws Exception {
+
+    	int max = args.length > 0 ? Integer.parseInt(args[0]) : 16000;
+    	int runs = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+    	System.out.printf("%10s %12s %12s %12s %14s%n", "functions", "instructions", "codegen ms", "link ms", "ns/instruction");
+    	for (int functions = Math.min(1000, max); functions <= max; functions *= 2) {
+    		Node ast = Compiler.check(CharStreams.fromString(program(functions)));
+    		long[] generation = new long[runs], linking = new long[runs];
+    		int instructions = 0;
+    		for (int r = -WARMUP; r < runs; r++) {
+    			FOOLlib.reset(); // the functions are collected again by every visit
+    			long start = System.nanoTime();
+    			Code code = new CodeGenerationASTVisitor().visit(ast);
+    			long generated = System.nanoTime();
+    			code.link(true);
+    			long linked = System.nanoTime();
+    			instructions = code.size();
+    			if (r >= 0) { generation[r] = generated - start; linking[r] = linked - generated; }
+    		}
+    		long g = EngineBenchmark.median(generation), l = EngineBenchmark.median(linking);
+    		System.out.printf("%10d %12d %12.2f %12.2f %14.1f%n", functions, instructions, g/1e6, l/1e6, (double)(g+l)/instructions);
+    	}
+    }
+
+    // a let with the given number of functions, each one calling the previous one
+    static String program(int functions) {
+    	StringBuilder s = new StringBuilder("let\n  fun f0:int (x:int) x;\n");
+    	for (int f = 1; f < functions; f++)
+    		s.append("  fun f").append(f).append(":int (x:int, y:bool)\n")
+    		 .append("    let var z:int = x * 2; in\n")
+    		 .append("      if (y) then {f").append(f-1).append(f == 1 ? "(z + 1)" : "(z + 1, !(y))")
+    		 .append("} else {z - x / 3 + ").append(f).append("};\n");
+    	return s.append("in\n  print(f").append(functions-1).append(functions == 1 ? "(1)" : "(1, true)").append(");\n").toString();
+    }
+}
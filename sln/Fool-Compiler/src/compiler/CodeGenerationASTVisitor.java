@@ -3,353 +3,452 @@ package compiler;
 import compiler.AST.*;
 import compiler.lib.*;
 import compiler.exc.*;
+import svm.Code;
 import svm.ExecuteVM;
+import svm.GarbageCollector;
 
-import java.util.ArrayList;
+import java.util.*;
 
 import static compiler.lib.FOOLlib.*;
+import static svm.Code.*;
+import static svm.SVMParser.*;
+
+public class CodeGenerationASTVisitor extends BaseASTVisitor<Code, VoidException> {
+
+	CodeGenerationASTVisitor() {this(false,true);}
+	CodeGenerationASTVisitor(boolean debug) {this(debug,true);} //enables print for debugging
+	CodeGenerationASTVisitor(boolean debug, boolean reuseFrames) {super(false,debug); this.reuseFrames=reuseFrames;} //reuseFrames false: anche le chiamate in coda con js, un frame ciascuna (per confronto)
+
+	private boolean inMethod = false; // codice di un metodo (o delle sue funzioni annidate): il livello 1 e' l'oggetto
+
+	/**
+	 * indirizzo del frame di livello level visto da codice di livello nl, senza risalire la
+	 * catena statica: il frame corrente, l'ambiente globale (a indirizzo fisso, sotto MEMSIZE),
+	 * l'oggetto su cui e' invocato il metodo (Access Link del frame del metodo) o il frame
+	 * della funzione attiva a quel livello, dal display
+	 */
+	private Code frame(int nl, int level) {
+		if (level == nl) return ins(LOADFP);
+		if (level == 0) return push(ExecuteVM.MEMSIZE);
+		if (inMethod && level == 1) return join(nl == 2 ? ins(LOADFP) : ins(LOADDISPLAY, 2), ins(LOADW));
+		return ins(LOADDISPLAY, level);
+	}
+
+	// indirizzo della dichiarazione vista da codice di livello nl: assoluto per quelle globali
+	private Code address(int nl, STentry entry) {
+		if (entry.nl == 0 && nl > 0) return push(ExecuteVM.MEMSIZE + entry.offset);
+		return join(frame(nl, entry.nl), push(entry.offset), ins(ADD));
+	}
+
+	private final boolean reuseFrames; // le chiamate in coda riusano il frame del chiamante (tjs)
+
+	// chiamate in posizione di coda nel corpo della funzione (o metodo) corrente: ne riusano il frame
+	private final Set<Node> tailCalls = Collections.newSetFromMap(new IdentityHashMap<>());
+	private int tailParams, tailLevel; // numero di parametri e nesting level del corpo della funzione corrente
+	private boolean tailDisplay;       // la funzione corrente aggiorna il display
+
+	// segna le chiamate in posizione di coda: il corpo stesso e i rami then/else degli if in coda
+	private void markTailCalls(Node exp) {
+		if (exp instanceof IfNode) {
+			markTailCalls(((IfNode) exp).th);
+			markTailCalls(((IfNode) exp).el);
+		} else if (exp instanceof NullCheckNode) markTailCalls(((NullCheckNode) exp).exp);
+		else if (exp instanceof CallNode || exp instanceof ClassCallNode) tailCalls.add(exp);
+	}
+
+	// codice del corpo di una funzione o di un metodo, con le sue chiamate in coda
+	private Code visitBody(Node exp, int params, int nl, boolean display) {
+		if (reuseFrames) markTailCalls(exp);
+		tailParams = params;
+		tailLevel = nl;
+		tailDisplay = display;
+		return visit(exp);
+	}
 
-public class CodeGenerationASTVisitor extends BaseASTVisitor<String, VoidException> {
+	/**
+	 * al posto di "js" per una chiamata in coda: ripristina il display (se la funzione corrente
+	 * lo aggiorna) e salta al chiamato, che prende il posto del frame corrente sotto il suo
+	 * Control Link e ritorna al suo Return Address; words sono Access Link e argomenti,
+	 * sullo stack sotto l'indirizzo del chiamato
+	 */
+	private Code tailJump(int words) {
+		return join(
+				tailDisplay ? join(ins(LOADFP), push(-2), ins(ADD), ins(LOADW), ins(RESTOREDISPLAY, tailLevel)) : null,
+				ins(LOADFP), push(tailParams + 1), ins(ADD), // address of the Control Link of the current frame
+				ins(TAILJS, words)
+		);
+	}
 
-	CodeGenerationASTVisitor() {}
-	CodeGenerationASTVisitor(boolean debug) {super(false,debug);} //enables print for debugging
+	// etichette dei metodi di questa generazione, anche prima del loro codice (chiamate devirtualizzate);
+	// per identita': MethodNode.equals confronta nome e parametri, uguali in classi diverse
+	private final Map<MethodNode, String> methodLabels = new IdentityHashMap<>();
 
+	private String methodLabel(MethodNode m) {
+		return methodLabels.computeIfAbsent(m, k -> freshFunLabel());
+	}
 
+	// il codice di ogni nodo porta la sua linea sorgente (source map dell'assembler)
 	@Override
-	public String visitNode(ProgLetInNode n) {
+	public Code visit(Visitable v, String mark) {
+		Code code = super.visit(v, mark);
+		return code != null && v instanceof Node ? code.at(((Node) v).getLine()) : code;
+	}
+
+
+	@Override
+	public Code visitNode(ProgLetInNode n) {
 		if (print) printNode(n);
-		String declCode = null;
-		for (Node dec : n.declist) declCode=nlJoin(declCode,visit(dec));
-		return nlJoin(
-				"push 0",
+		Code declCode = null;
+		for (Node dec : n.declist)
+			if (((DecNode) dec).live) declCode=join(declCode,visit(dec)); // le dichiarazioni eliminate non hanno posto nel frame
+		return join(
+				push(0),
 				declCode, // generate code for declarations (allocation)
 				visit(n.exp),
-				"halt",
+				ins(HALT),
 				getCode()
 		);
 	}
 
 	@Override
-	public String visitNode(ProgNode n) {
+	public Code visitNode(ProgNode n) {
 		if (print) printNode(n);
-		return nlJoin(
+		return join(
 				visit(n.exp),
-				"halt"
+				ins(HALT)
 		);
 	}
 
 	@Override
-	public String visitNode(FunNode n) {
+	public Code visitNode(FunNode n) {
 		if (print) printNode(n, n.id);
-		String declCode = null, popDecl = null, popParl = null;
+		Code declCode = null, popDecl = null, popParl = null;
 		for (Node dec : n.declist) {
-			declCode = nlJoin(declCode, visit(dec));
-			popDecl = nlJoin(popDecl, "pop");
+			if (!((DecNode) dec).live) continue; // eliminata dalla dead code elimination
+			declCode = join(declCode, visit(dec));
+			popDecl = join(popDecl, ins(POP));
 		}
-		for (int i = 0; i < n.parlist.size(); i++) popParl = nlJoin(popParl, "pop");
+		for (int i = 0; i < n.parlist.size(); i++) popParl = join(popParl, ins(POP));
 		String funl = freshFunLabel();
 		putCode(
-				nlJoin(
-						funl + ":",
-						"cfp", // set $fp to $sp value
-						"lra", // load $ra value
+				join(
+						label(funl),
+						ins(COPYFP), // set $fp to $sp value
+						ins(LOADRA), // load $ra value
+						n.display ? ins(SAVEDISPLAY, n.nl) : null, // save display[nl], set it to $fp (for nested functions)
 						declCode, // generate code for local declarations (they use the new $fp!!!)
-						visit(n.exp), // generate code for function body expression
-						"stm", // set $tm to popped value (function result)
+						visitBody(n.exp, n.parlist.size(), n.nl, n.display), // generate code for function body expression
+						ins(STORETM), // set $tm to popped value (function result)
 						popDecl, // remove local declarations from stack
-						"sra", // set $ra to popped value
-						"pop", // remove Access Link from stack
+						n.display ? ins(RESTOREDISPLAY, n.nl) : null, // restore display[nl]
+						ins(STORERA), // set $ra to popped value
+						ins(POP), // remove Access Link from stack
 						popParl, // remove parameters from stack
-						"sfp", // set $fp to popped value (Control Link)
-						"ltm", // load $tm value (function result)
-						"lra", // load $ra value
-						"js"  // jump to popped address
-				)
+						ins(STOREFP), // set $fp to popped value (Control Link)
+						ins(LOADTM), // load $tm value (function result)
+						ins(LOADRA), // load $ra value
+						ins(JS)  // jump to popped address
+				).at(n.getLine())
 		);
-		return "push " + funl;
+		return push(funl);
 	}
 
 	@Override
-	public String visitNode(VarNode n) {
+	public Code visitNode(VarNode n) {
 		if (print) printNode(n,n.id);
 		return visit(n.exp);
 	}
 
 	@Override
-	public String visitNode(PrintNode n) {
+	public Code visitNode(PrintNode n) {
 		if (print) printNode(n);
-		return nlJoin(
+		return join(
 				visit(n.exp),
-				"print"
+				ins(PRINT)
 		);
 	}
 
 	@Override
-	public String visitNode(IfNode n) {
+	public Code visitNode(IfNode n) {
 		if (print) printNode(n);
 		String l1 = freshLabel();
 		String l2 = freshLabel();
-		return nlJoin(
+		return join(
 				visit(n.cond),
-				"push 1",
-				"beq "+l1,
+				push(1),
+				ins(BRANCHEQ, l1),
 				visit(n.el),
-				"b "+l2,
-				l1+":",
+				ins(BRANCH, l2),
+				label(l1),
 				visit(n.th),
-				l2+":"
+				label(l2)
 		);
 	}
 
 	@Override
-	public String visitNode(EqualNode n) {
+	public Code visitNode(EqualNode n) {
 		if (print) printNode(n);
 		String l1 = freshLabel();
 		String l2 = freshLabel();
-		return nlJoin(
+		return join(
 				visit(n.left),
 				visit(n.right),
-				"beq "+l1,
-				"push 0",
-				"b "+l2,
-				l1+":",
-				"push 1",
-				l2+":"
+				ins(BRANCHEQ, l1),
+				push(0),
+				ins(BRANCH, l2),
+				label(l1),
+				push(1),
+				label(l2)
 		);
 	}
 
 	@Override
-	public String visitNode(LessEqualNode n) {
+	public Code visitNode(LessEqualNode n) {
 		if (print) printNode(n);
 		String ok = freshLabel();
 		String ko = freshLabel();
 		String end = freshLabel();
-		return nlJoin(
+		return join(
 				visit(n.left),
 				visit(n.right),
-				"bleq "+ok,
-				"b "+ko,
-				ok+":",
-				"push 1",
-				"b "+end,
-				ko+":",
-				"push 0",
-				"b "+end,
-				end+":"
+				ins(BRANCHLESSEQ, ok),
+				ins(BRANCH, ko),
+				label(ok),
+				push(1),
+				ins(BRANCH, end),
+				label(ko),
+				push(0),
+				ins(BRANCH, end),
+				label(end)
 		);
 	}
 
 	@Override
-	public String visitNode(GreaterEqualNode n) {
+	public Code visitNode(GreaterEqualNode n) {
 		if (print) printNode(n);
 		String ok = freshLabel();
 		String gt = freshLabel();
 		String ko = freshLabel();
 		String end = freshLabel();
-		return nlJoin(
+		return join(
 				visit(n.left),
 				visit(n.right),
-				"beq "+ok, //CONTROLLO SIANO UGUALI
-				"b "+gt,
-				gt+":", //INVERTO SINISTRA CON DESTRA ED APPLICO IL MINORE
+				ins(BRANCHEQ, ok), //CONTROLLO SIANO UGUALI
+				ins(BRANCH, gt),
+				label(gt), //INVERTO SINISTRA CON DESTRA ED APPLICO IL MINORE
 				visit(n.right), //A > B == B < A
 				visit(n.left),
-				"bleq "+ok,
-				"b "+ko,
-				ok+":",
-				"push 1",
-				"b "+end,
-				ko+":",
-				"push 0",
-				"b "+end,
-				end+":"
+				ins(BRANCHLESSEQ, ok),
+				ins(BRANCH, ko),
+				label(ok),
+				push(1),
+				ins(BRANCH, end),
+				label(ko),
+				push(0),
+				ins(BRANCH, end),
+				label(end)
 		);
 	}
 
 
 	@Override
-	public String visitNode(TimesNode n) {
+	public Code visitNode(TimesNode n) {
 		if (print) printNode(n);
-		return nlJoin(
+		return join(
 				visit(n.left),
 				visit(n.right),
-				"mult"
+				ins(MULT)
 		);
 	}
 
 	@Override
-	public String visitNode(DivNode n) {
+	public Code visitNode(DivNode n) {
 		if (print) printNode(n);
-		return nlJoin(
+		return join(
 				visit(n.left),
 				visit(n.right),
-				"div"
+				ins(DIV)
 		);
 	}
 
 	@Override
-	public String visitNode(PlusNode n) {
+	public Code visitNode(PlusNode n) {
 		if (print) printNode(n);
-		return nlJoin(
+		return join(
 				visit(n.left),
 				visit(n.right),
-				"add"
+				ins(ADD)
 		);
 	}
 
 	@Override
-	public String visitNode(MinusNode n){
+	public Code visitNode(MinusNode n){
 		if(print) printNode(n);
-		return nlJoin(
+		return join(
 				visit(n.left),
 				visit(n.right),
-				"sub"
+				ins(SUB)
 		);
 	}
 
 	@Override
-	public String visitNode(NotNode n){
+	public Code visitNode(NotNode n){
 		if(print) printNode(n);
 		String ok = freshLabel();
 		String ko = freshLabel();
 		String end = freshLabel();
-		return nlJoin(
+		return join(
 				visit(n.inner),
-				"push 1",
-				"beq "+ko, //1 == 1 mi pusha 0
-				"b "+ok, //altrimenti 0 == 1 mi pusha 1
-				ko+":", //difatti invertendo il valore sullo stack
-				"push 0",
-				"b "+ end,
-				ok+":",
-				"push 1",
-				"b "+end,
-				end+":"
+				push(1),
+				ins(BRANCHEQ, ko), //1 == 1 mi pusha 0
+				ins(BRANCH, ok), //altrimenti 0 == 1 mi pusha 1
+				label(ko), //difatti invertendo il valore sullo stack
+				push(0),
+				ins(BRANCH, end),
+				label(ok),
+				push(1),
+				ins(BRANCH, end),
+				label(end)
 		);
 	}
 
 	@Override
-	public String visitNode(AndNode n){
+	public Code visitNode(AndNode n){
 		if(print) printNode(n);
 		String okFirst = freshLabel();
 		String okSecond = freshLabel();
 		String ko = freshLabel();
 		String end = freshLabel();
-		return nlJoin(
+		return join(
 				visit(n.left),
-				"push 1",
-				"beq "+ okFirst,
-				"b "+ ko,
-				okFirst +":",
+				push(1),
+				ins(BRANCHEQ, okFirst),
+				ins(BRANCH, ko),
+				label(okFirst),
 					visit(n.right),
-					"push 1",
-					"beq "+ okSecond,
-					"b "+ ko,
-				okSecond +":",
-					"push 1",
-					"b "+end,
-				ko+":",
-					"push 0",
-					"b "+end,
-				end +":"
+					push(1),
+					ins(BRANCHEQ, okSecond),
+					ins(BRANCH, ko),
+				label(okSecond),
+					push(1),
+					ins(BRANCH, end),
+				label(ko),
+					push(0),
+					ins(BRANCH, end),
+				label(end)
 		);
 	}
 
 	@Override
-	public String visitNode(OrNode n) {
+	public Code visitNode(OrNode n) {
 		if (print) printNode(n);
 		String ok = freshLabel();
 		String ko = freshLabel();
 		String end = freshLabel();
-		return nlJoin(
+		return join(
 				visit(n.left),
-				"push 1",
-				"beq "+ok,
+				push(1),
+				ins(BRANCHEQ, ok),
 				visit(n.right),
-				"push 1",
-				"beq "+ok,
-				"b "+ ko,
-				ok+":",
-					"push 1",
-					"b "+ end,
-				ko+":",
-					"push 0",
-					"b "+ end,
-				end+":"
+				push(1),
+				ins(BRANCHEQ, ok),
+				ins(BRANCH, ko),
+				label(ok),
+					push(1),
+					ins(BRANCH, end),
+				label(ko),
+					push(0),
+					ins(BRANCH, end),
+				label(end)
 		);
 	}
 
 	@Override
-	public String visitNode(CallNode n) {
+	public Code visitNode(CallNode n) {
 		if (print) printNode(n,n.id);
-		String argCode = null, getAR = null;
-		for (int i=n.arglist.size()-1;i>=0;i--) argCode=nlJoin(argCode,visit(n.arglist.get(i)));
-		for (int i = 0;i<n.nl-n.entry.nl;i++) getAR=nlJoin(getAR,"lw");
-		if(n.entry.offset >= 0){
-			return nlJoin(
+		Code argCode = null;
+		for (int i=n.arglist.size()-1;i>=0;i--) argCode=join(argCode,visit(n.arglist.get(i)));
+		// in coda, se il chiamato non e' dichiarato nella funzione corrente (il suo Access Link non e' il frame da riusare)
+		boolean tail = tailCalls.contains(n) && n.entry.nl < n.nl;
+		Code controlLink = tail ? null : ins(LOADFP), jump = tail ? tailJump(n.arglist.size() + 1) : ins(JS);
+		if(n.entry.offset >= 0 && n.target != null){
+			return join(
+					controlLink, // mi salvo il Control Link (non in coda)
+					argCode, //genera il codice per gli argomenti passati
+					frame(n.nl, n.entry.nl), // Access Link: l'oggetto corrente, non null
+					push(methodLabel(n.target)), // devirtualizzata: address of "id" method, senza Dispatch Table
+					jump
+			);
+		}
+		else if(n.entry.offset >= 0){
+			return join(
 					/**
 					 * dopo aver messo sullo stack l’Access Link impostandolo
-					 * all’indirizzo ottenuto tramite risalita della catena statica (in base a differenza di nesting level di ID) e aver
+					 * all’indirizzo dell'oggetto (in base al nesting level di ID) e aver
 					 * duplicato tale indirizzo sullo stack
 					 */
-					"lfp", // mi salvo il Control Link
+					controlLink, // mi salvo il Control Link (non in coda)
 					argCode, //genera il codice per gli argomenti passati
-					"lfp", // mi salvo il Control Link dopo aver dichiarato gli argomenti
-					getAR,
-					"stm", //lo uso per duplicarlo
-					"ltm", //lo carico
-					"ltm", //lo duplico
-					"lw", //nel caso del metodo prendo per deferenziazione il dispatch pointer per poi andare a prendere la dispatch table
-					"push"+n.entry.offset,
-					"add",
-					"lw",
-					"js"
+					frame(n.nl, n.entry.nl), // l'oggetto su cui e' invocato il metodo
+					ins(STORETM), //lo uso per duplicarlo
+					ins(LOADTM), //lo carico
+					ins(LOADTM), //lo duplico
+					ins(LOADW), //nel caso del metodo prendo per deferenziazione il dispatch pointer per poi andare a prendere la dispatch table
+					push(n.entry.offset),
+					ins(ADD),
+					ins(LOADW),
+					jump
+			);
+		}
+		else if(n.entry.nl == 0 && n.nl > 0){
+			return join(
+					controlLink, // load Control Link (pointer to frame of function "id" caller), not for tail calls
+					argCode, // generate code for argument expressions in reversed order
+					push(ExecuteVM.MEMSIZE), // Access Link: global frame
+					push(ExecuteVM.MEMSIZE + n.entry.offset), // absolute address of "id" declaration
+					ins(LOADW), // load address of "id" function
+					jump  // jump to popped address (saving address of subsequent instruction in $ra, or reusing the frame)
 			);
 		}
 		else{
-			return nlJoin(
-					"lfp", // load Control Link (pointer to frame of function "id" caller)
+			return join(
+					controlLink, // load Control Link (pointer to frame of function "id" caller), not for tail calls
 					argCode, // generate code for argument expressions in reversed order
-					"lfp",// retrieve address of frame containing "id" declaration
-					getAR, // by following the static chain (of Access Links)
-					"stm", // set $tm to popped value (with the aim of duplicating top of stack)
-					"ltm", // load Access Link (pointer to frame of function "id" declaration)
-					"ltm", // duplicate top of stack
-					"push "+n.entry.offset, //push fun offset
-					"add", // compute address of "id" declaration
-					"lw", // load address of "id" function
-					"js"  // jump to popped address (saving address of subsequent instruction in $ra)
+					frame(n.nl, n.entry.nl), // retrieve address of frame containing "id" declaration (from the display)
+					ins(STORETM), // set $tm to popped value (with the aim of duplicating top of stack)
+					ins(LOADTM), // load Access Link (pointer to frame of function "id" declaration)
+					ins(LOADTM), // duplicate top of stack
+					push(n.entry.offset), //push fun offset
+					ins(ADD), // compute address of "id" declaration
+					ins(LOADW), // load address of "id" function
+					jump  // jump to popped address (saving address of subsequent instruction in $ra, or reusing the frame)
 			);
 		}
 	}
 
 	@Override
-	public String visitNode(IdNode n) {
+	public Code visitNode(IdNode n) {
 		if (print) printNode(n,n.id);
-		String getAR = null;
-		for (int i = 0;i<n.nl-n.entry.nl;i++) getAR=nlJoin(getAR,"lw");
-		return nlJoin(
-				"lfp", getAR, // retrieve address of frame containing "id" declaration
-				// by following the static chain (of Access Links)
-				"push "+n.entry.offset, "add", // compute address of "id" declaration
-				"lw" // load value of "id" variable
+		return join(
+				address(n.nl, n.entry), // compute address of "id" declaration (absolute, or in the frame from the display)
+				ins(LOADW) // load value of "id" variable
 		);
 	}
 
 	@Override
-	public String visitNode(BoolNode n) {
+	public Code visitNode(BoolNode n) {
 		if (print) printNode(n,n.val.toString());
-		return "push "+(n.val?1:0);
+		return push(n.val?1:0);
 	}
 
 	@Override
-	public String visitNode(IntNode n) {
+	public Code visitNode(IntNode n) {
 		if (print) printNode(n,n.val.toString());
-		return "push "+n.val;
+		return push(n.val);
 	}
 
 	@Override
-	public String visitNode(ClassNode n){
+	public Code visitNode(ClassNode n){
 		if (print) printNode(n);
 
 		var classDispatchTable = new ArrayList<String>();
@@ -359,6 +458,7 @@ public class CodeGenerationASTVisitor extends BaseASTVisitor<String, VoidExcepti
 		 * – aggiorno la Dispatch Table creata settando la posizione data dall’offset del metodo alla sua etichetta
 		 */
 		for(var method : n.methods){
+			if(!method.live) continue; // mai invocato: nessun codice, nessun posto nella Dispatch Table
 			visit(method);
 
 			var methodLabelAssigned = method.label;
@@ -367,27 +467,53 @@ public class CodeGenerationASTVisitor extends BaseASTVisitor<String, VoidExcepti
 			classDispatchTable.add(methodOffset, methodLabelAssigned);
 		}
 
-		String instructions = "";
+		/**
+		 * prima delle etichette la Dispatch Table contiene l'header del blocco per il garbage collector,
+		 * le maschere dei campi puntatore (bit i = campo i di tipo classe) e il numero di campi
+		 */
+		int maskWords = (n.fields.size() + 31) / 32;
+		int[] masks = new int[maskWords];
+		for(int i = 0; i < n.fields.size(); i++)
+			if(n.fields.get(i).getType() instanceof RefTypeNode) masks[i / 32] |= 1 << (i % 32);
+
+		var classLayout = new ArrayList<Integer>();
+		classLayout.add(GarbageCollector.header(GarbageCollector.TABLE, maskWords + 1 + classDispatchTable.size()));
+		for(int i = maskWords - 1; i >= 0; i--) classLayout.add(masks[i]);
+		classLayout.add(n.fields.size());
+
+		Code instructions = null;
+		for(var word : classLayout){
+			instructions = join(
+					instructions,
+					push(word),
+					ins(LOADHP),
+					ins(STOREW),
+					ins(LOADHP),
+					push(1),
+					ins(ADD),
+					ins(STOREHP)
+			);
+		}
 
 		// metto valore di $hp sullo stack: sarà il dispatchpointer da ritornare alla fine
 
-		instructions = nlJoin("lhp"); ///push in the stack the content of the HP register
+		instructions = join(instructions, ins(LOADHP)); ///push in the stack the content of the HP register
 
 		//creo sullo heap la Dispatch Table che ho costruito: la
 		//scorro dall’inizio alla fine
 
 		for(var label : classDispatchTable){
 			//per ciascuna etichetta: la memorizzo a indirizzo in $hp ed incremento $hp
-			instructions = nlJoin(
+			instructions = join(
 					instructions,
 					//prendo l'indirizzo da $hp
-					"push "+label, //[label]
-					"lhp",		   //[hp, label]
-					"sw", ///pop two values: the second one is written at the memory address pointed by the first one [1:hp, 2:label]
-					"lhp",		   //[hp]
-					"push 1",      //[1, hp]
-					"add",		   //[hp+1]
-					"shp" ///pop the top of the stack and copy it in the HP register
+					push(label), //[label]
+					ins(LOADHP),		   //[hp, label]
+					ins(STOREW), ///pop two values: the second one is written at the memory address pointed by the first one [1:hp, 2:label]
+					ins(LOADHP),		   //[hp]
+					push(1),      //[1, hp]
+					ins(ADD),		   //[hp+1]
+					ins(STOREHP) ///pop the top of the stack and copy it in the HP register
 					);
 		}
 
@@ -395,43 +521,49 @@ public class CodeGenerationASTVisitor extends BaseASTVisitor<String, VoidExcepti
 	}
 
 	@Override
-	public String visitNode(MethodNode n){
+	public Code visitNode(MethodNode n){
 		if (print) printNode(n);
 
 		//genera un’etichetta nuova per il suo indirizzo e la mette nel suo campo "label" (aggiungere tale campo)
-		n.label = freshFunLabel();
+		n.label = methodLabel(n);
 		//genera il codice del metodo (invariato rispetto a funzioni)
 
-		String declCode = "", popDecl = "", popParl = "	";
+		Code declCode = null, popDecl = null, popParl = null;
+		inMethod = true;
 		for(Node dec : n.decList){
-			declCode = nlJoin(declCode, visit(dec));
-			popDecl = nlJoin(popDecl, "pop");
+			if (!((DecNode) dec).live) continue; // eliminata dalla dead code elimination
+			declCode = join(declCode, visit(dec));
+			popDecl = join(popDecl, ins(POP));
 		}
+		Code body = visitBody(n.exp, n.parList.size(), n.nl, n.display); // generate code for method body expression
+		inMethod = false;
 
 		for(ParNode par : n.parList) {
-			popParl = nlJoin(popParl, "pop");
+			popParl = join(popParl, ins(POP));
 		}
 
 		/**
 		 * lo inserisce in FOOLlib con putCode()
 		 */
 		putCode(
-				nlJoin(
-						n.label+":",
-						"cfp", // set $fp to $sp value
-						"lra", // load $ra value
+				join(
+						label(n.label),
+						ins(COPYFP), // set $fp to $sp value
+						ins(LOADRA), // load $ra value
+						n.display ? ins(SAVEDISPLAY, n.nl) : null, // save display[nl], set it to $fp (for nested functions)
 						declCode, // generate code for local declarations (they use the new $fp!!!)
-						visit(n.exp), // generate code for function body expression
-						"stm", // set $tm to popped value (function result)
+						body,
+						ins(STORETM), // set $tm to popped value (function result)
 						popDecl, // remove local declarations from stack
-						"sra", // set $ra to popped value
-						"pop", // remove Access Link from stack
+						n.display ? ins(RESTOREDISPLAY, n.nl) : null, // restore display[nl]
+						ins(STORERA), // set $ra to popped value
+						ins(POP), // remove Access Link from stack
 						popParl, // remove parameters from stack
-						"sfp", // set $fp to popped value (Control Link)
-						"ltm", // load $tm value (function result)
-						"lra", // load $ra value
-						"js"  // jump to popped address
-				)
+						ins(STOREFP), // set $fp to popped value (Control Link)
+						ins(LOADTM), // load $tm value (function result)
+						ins(LOADRA), // load $ra value
+						ins(JS)  // jump to popped address
+				).at(n.getLine())
 		);
 
 		//– ritorna codice vuoto (null)
@@ -439,112 +571,106 @@ public class CodeGenerationASTVisitor extends BaseASTVisitor<String, VoidExcepti
 	}
 
 	@Override
-	public String visitNode(EmptyNode n){
+	public Code visitNode(EmptyNode n){
 		if (print) printNode(n);
-		return "push -1";  //sicuramente diverso da object pointer di ogni oggetto creato
+		return push(-1);  //sicuramente diverso da object pointer di ogni oggetto creato
 	}
 
 	@Override
-	public String visitNode(ClassCallNode n){
+	public Code visitNode(ClassCallNode n){
 		/**
 		 * ID1.ID2()
 		 */
 		if (print) printNode(n);
-		String argCode = null, getAR = null;
-		for (int i=n.args.size()-1;i>=0;i--) argCode=nlJoin(argCode,visit(n.args.get(i)));
-		for (int i = 0;i<n.nestingLevel-n.entry.nl;i++) getAR=nlJoin(getAR,"lw");
-		String instructions =  nlJoin(
+		Code argCode = null;
+		for (int i=n.args.size()-1;i>=0;i--) argCode=join(argCode,visit(n.args.get(i)));
+		// in coda sempre: l'Access Link e' l'oggetto
+		boolean tail = tailCalls.contains(n);
+		Code controlLink = tail ? null : ins(LOADFP), jump = tail ? tailJump(n.args.size() + 1) : ins(JS);
+		Code instructions =  join(
 				/**
 				 * inizia la costruzione dell’AR del metodo ID2 invocato:
 				 * aver messo sullo stack il Control Link e il valore dei
 				 * parametri
 				 */
-				"lfp", // load Control Link (pointer to frame of function "id" caller)
+				controlLink, // load Control Link (pointer to frame of function "id" caller), not for tail calls
 				argCode, // generate code for argument expressions in reversed order
 				/**
 				 * recupera valore dell'ID1 (object pointer) dall'AR dove è
 				 * dichiarato
 				 */
-				"lfp",  // retrieve address of frame containing "id" declaration
-				getAR, // by following the static chain (of Access Links)
 				/**
 				 *  per settare a tale valore l’Access Link mettendolo sullo
 				 * stack e, duplicandolo
 				 */
-				"push "+n.entry.offset,
-				"add", // compute address of "id1" declaration
-				"lw", //mi carico il valore di id1
-				"stm",
-				"ltm",
-				"ltm", // duplicato
-				"lw",
-				"push " + (n.methodEntry.offset),
-				"add",// compute address of "id1" usage
-				/**
-				 * per recuperare (usando l’offset di ID2 nella dispatchtable riferita dal dispatch pointer dell’oggetto)
-				 * l'indirizzo del metodo a cui saltare
-				 */
-				"lw", // load address of "id2" method
-				"js"  // jump to popped address (saving address of subsequent instruction in $ra)
+				address(n.nestingLevel, n.entry), // compute address of "id1" declaration
+				ins(LOADW), //mi carico il valore di id1
+				ins(STORETM),
+				ins(LOADTM),
+				ins(LOADTM), // duplicato
+				ins(LOADW), // dispatch pointer: se l'oggetto e' null l'accesso fallisce, anche per le chiamate dirette
+				n.target != null ? join(
+						ins(POP), // devirtualizzata: la Dispatch Table non serve
+						push(methodLabel(n.target)) // address of "id2" method
+				) : join(
+						push(n.methodEntry.offset),
+						ins(ADD),// compute address of "id1" usage
+						/**
+						 * per recuperare (usando l’offset di ID2 nella dispatchtable riferita dal dispatch pointer dell’oggetto)
+						 * l'indirizzo del metodo a cui saltare
+						 */
+						ins(LOADW) // load address of "id2" method
+				),
+				jump  // jump to popped address (saving address of subsequent instruction in $ra, or reusing the frame)
 
 		);
 		return instructions;
 	}
 
-	public String visitNode(NewNode n){
-		if(print) printNode(n);
-		String argCode = "", argToHeap = "";
-		for(var arg : n.args){
-			argCode = nlJoin(argCode, visit(arg));
-			argToHeap = nlJoin(
-					argToHeap,
-					"lhp",//[val] //metto sullo stack il puntatore dell'heap
-					"sw",//[hp, val] //metto il valore sotto all'indirizzo di heap
-
-					"lhp", //incremento hp
-					"push 1",
-					"add",
-					"shp" //mi salvo il nuovo hp
-			);
-		}
+	@Override
+	public Code visitNode(FieldAccessNode n){
+		if (print) printNode(n, n.id);
+		return join(
+				visit(n.object), // object pointer
+				push(n.entry.offset), // i campi sono sotto l'object pointer, a offset -1, -2, ...
+				ins(ADD),
+				ins(LOADW) // load value of "id" field
+		);
+	}
 
-		String modHp = "";
-		/**
-		 * scrive a indirizzo $hp il dispatch pointer recuperandolo da
-		 * contenuto indirizzo MEMSIZE + offset classe ID
-		 */
-		modHp = nlJoin(
-				"push " + (ExecuteVM.MEMSIZE + n.entry.offset),
-					   "lw" //scrivo ad HP il valore del push
+	@Override
+	public Code visitNode(NullCheckNode n){
+		if (print) printNode(n);
+		return join(
+				visit(n.object), // object pointer
+				ins(LOADW), // dispatch pointer: se l'oggetto e' null l'accesso fallisce, come la chiamata
+				ins(POP),
+				visit(n.exp)
 		);
+	}
+
+	public Code visitNode(NewNode n){
+		if(print) printNode(n);
+		Code argCode = null;
+		for(var arg : n.args) argCode = join(argCode, visit(arg)); //metto il codice degli argomenti nello stack
 
 		/**
-		 * carica sullo stack il valore di $hp (indirizzo object pointer da ritornare)
-		 * e incrementa $hp
+		 * recupera il dispatch pointer dal contenuto dell'indirizzo MEMSIZE + offset classe ID;
+		 * ins(NEW) alloca l'oggetto sullo heap (header, campi, dispatch pointer) eventualmente
+		 * invocando il garbage collector, e lascia sullo stack l'object pointer
 		 */
-		String finalHp = "";
-		finalHp = nlJoin(
-				"lhp",
-				"sw", //mi salvo ad hp il valore di hp
-				"lhp",// da lasciare nello stack
-				"lhp", //per incrementarlo
-				"push 1",
-				"add",
-				"shp"
-		);
-
-		return nlJoin(
-				argCode, //metto il codice degli argomenti nello stack
-				argToHeap, //li sposto nell heap
-				modHp,
-				finalHp
+		return join(
+				argCode,
+				push(ExecuteVM.MEMSIZE + n.entry.offset),
+				ins(LOADW),
+				ins(NEW)
 		);
 	}
 
-	public String visitNode(EmptyTypeNode n){
+	public Code visitNode(EmptyTypeNode n){
 		System.out.println("NON CI DOVRESTI ENTRARE QUI");
 
-		return "";
+		return null;
 	}
 
 }
\ No newline at end of file
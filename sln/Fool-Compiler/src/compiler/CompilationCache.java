@@ -0,0 +1,190 @@
+package compiler;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import org.antlr.v4.runtime.*;
+import compiler.exc.*;
+import svm.*;
+
+/*
+ * Content-addressed on-disk cache of compiled programs: the key is the SHA-256 of
+ * the source together with the compiler version (Compiler.VERSION, ObjectFile.VERSION)
+ * and the options, so a hit skips front end, code generation and assembly.
+ *
+ * Entries in the cache directory:
+ *   <key>.svm  object file of a program compiled without errors
+ *   <key>.err  number of front-end errors on the first line, then the diagnostics
+ * Entries are written to a temporary file and renamed into place, so concurrent
+ * compiler processes sharing the directory never read a partial entry (and the
+ * same key always gets the same content); an entry that cannot be read anyway
+ * (truncated or corrupted on disk) is a miss: it is deleted and compiled again.
+ * The last-modified time of an entry is its last use: when the entries exceed
+ * the size bound, the least recently used ones are deleted.
+ */
+public class CompilationCache {
+
+    public static final long MAXBYTES = 64L << 20; // default size bound
+
+    private final Path dir;
+    private final long maxBytes;
+    private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong(), evictions = new AtomicLong();
+
+    public CompilationCache(Path dir) throws IOException {
+    	this(dir, MAXBYTES);
+    }
+
+    public CompilationCache(Path dir, long maxBytes) throws IOException {
+    	this.dir = Files.createDirectories(dir);
+    	this.maxBytes = maxBytes;
+    }
+
+    /*
+     * Usage: CompilationCache [-cache dir] file.fool...
+     * Compiles each file.fool into the object file file.fool.svm (see Run) through
+     * the cache, by default .foolcache in the working directory.
+     */
+    public static void main(String[] args) throws IOException {
+    	int first = args.length > 1 && args[0].equals("-cache") ? 2 : 0;
+    	CompilationCache cache = new CompilationCache(Paths.get(first > 0 ? args[1] : ".foolcache"));
+    	int failed = 0;
+    	for (String fileName : Arrays.asList(args).subList(first, args.length))
+    		try {
+    			Program program = cache.compile(Files.readString(Paths.get(fileName), StandardCharsets.UTF_8), true);
+    			ObjectFile.write(Paths.get(fileName+".svm"), program.getCode(), program.getLabels(), program.getSourceMap());
+    		} catch (CompilationException e) {
+    			System.err.print(e.diagnostics);
+    			System.err.println(fileName+": "+e.getMessage());
+    			failed++;
+    		}
+    	System.err.println(cache);
+    	if (failed > 0) System.exit(1);
+    }
+
+    /*
+     * The program compiled from source, from the cache if present; front-end
+     * errors are thrown as a CompilationException with the diagnostics.
+     */
+    public Program compile(String source, boolean fusion) throws CompilationException, IOException {
+    	String key = key(source, fusion);
+    	Path object = dir.resolve(key+".svm"), errors = dir.resolve(key+".err");
+    	try {
+    		Program program = Program.load(ObjectFile.load(object));
+    		touch(object);
+    		hits.incrementAndGet();
+    		return program;
+    	} catch (NoSuchFileException e) {
+    		// not compiled yet, or compiled with errors
+    	} catch (IOException e) {
+    		Files.deleteIfExists(object); // truncated or corrupted: compiled again
+    	}
+    	try {
+    		String entry = Files.readString(errors, StandardCharsets.UTF_8);
+    		int newline = entry.indexOf('\n');
+    		CompilationException cached = new CompilationException(Integer.parseInt(entry.substring(0, newline)), entry.substring(newline+1));
+    		touch(errors);
+    		hits.incrementAndGet();
+    		throw cached;
+    	} catch (NoSuchFileException e) {
+    		// not compiled yet
+    	} catch (IOException | NumberFormatException | StringIndexOutOfBoundsException e) {
+    		Files.deleteIfExists(errors); // not UTF-8, or without the number of errors: compiled again
+    	}
+    	misses.incrementAndGet();
+
+    	ByteArrayOutputStream diagnostics = new ByteArrayOutputStream();
+    	Code code;
+    	try {
+    		code = Compiler.generate(CharStreams.fromString(source), new PrintStream(diagnostics, true, StandardCharsets.UTF_8));
+    	} catch (CompilationException e) {
+    		e.diagnostics = diagnostics.toString(StandardCharsets.UTF_8);
+    		store(errors, file -> Files.writeString(file, e.errors+"\n"+e.diagnostics, StandardCharsets.UTF_8));
+    		throw e;
+    	}
+    	Assembler assembler = new Assembler();
+    	assembler.fusion = fusion;
+    	code.assemble(assembler);
+    	int[] program = assembler.link();
+    	store(object, file -> ObjectFile.write(file, program, assembler.getLabels(), assembler.getSourceMap()));
+    	return new Program(program, assembler.getLabels(), assembler.getSourceMap());
+    }
+
+    private static String key(String source, boolean fusion) {
+    	try {
+    		MessageDigest sha = MessageDigest.getInstance("SHA-256");
+    		sha.update(("fool "+Compiler.VERSION+" svm "+ObjectFile.VERSION+" fusion "+fusion+"\n").getBytes(StandardCharsets.UTF_8));
+    		byte[] hash = sha.digest(source.getBytes(StandardCharsets.UTF_8));
+    		StringBuilder hex = new StringBuilder();
+    		for (byte b : hash) hex.append(String.format("%02x", b));
+    		return hex.toString();
+    	} catch (NoSuchAlgorithmException e) {
+    		throw new IllegalStateException(e); // every JVM has SHA-256
+    	}
+    }
+
+    private interface Writer {
+    	void write(Path file) throws IOException;
+    }
+
+    // writes the entry atomically, then evicts if needed
+    private void store(Path entry, Writer writer) throws IOException {
+    	Path tmp = Files.createTempFile(dir, entry.getFileName().toString(), ".tmp");
+    	try {
+    		writer.write(tmp);
+    		Files.move(tmp, entry, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    	} finally {
+    		Files.deleteIfExists(tmp);
+    	}
+    	evict();
+    }
+
+    private static void touch(Path entry) {
+    	try {
+    		Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+    	} catch (IOException e) {
+    		// evicted meanwhile by another process: the entry was read anyway
+    	}
+    }
+
+    // deletes the least recently used entries while their total size exceeds the bound
+    private synchronized void evict() throws IOException {
+    	List<Path> entries = new ArrayList<>();
+    	Map<Path,long[]> info = new HashMap<>(); // size, last use
+    	long total = 0;
+    	try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.{svm,err}")) {
+    		for (Path f : files)
+    			try {
+    				long size = Files.size(f);
+    				info.put(f, new long[] {size, Files.getLastModifiedTime(f).toMillis()});
+    				entries.add(f);
+    				total += size;
+    			} catch (NoSuchFileException e) {
+    				// evicted by another process
+    			}
+    	}
+    	if (total <= maxBytes) return;
+    	entries.sort(Comparator.comparingLong(f -> info.get(f)[1]));
+    	for (Path f : entries) {
+    		if (total <= maxBytes) break;
+    		if (Files.deleteIfExists(f)) evictions.incrementAndGet();
+    		total -= info.get(f)[0];
+    	}
+    }
+
+    public long getHits() {
+    	return hits.get();
+    }
+
+    public long getMisses() {
+    	return misses.get();
+    }
+
+    @Override
+    public String toString() {
+    	return "Compilation cache "+dir+": "+hits.get()+" hits, "+misses.get()+" misses, "+evictions.get()+" evictions";
+    }
+}
@@ -0,0 +1,231 @@
+package compiler;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import org.antlr.v4.runtime.*;
+import compiler.exc.*;
+import svm.*;
+
+/*
+ * Long-running compile server: one JVM compiles and runs any number of FOOL
+ * programs, so JVM startup, class loading, ANTLR ATN deserialization and the DFA
+ * caches of FOOLParser and SVMParser (static, shared by all the parsers) are paid
+ * once and stay warm.
+ * Usage: CompileServer [port]
+ * With a port it serves connections on the loopback interface, one at a time;
+ * without, it serves a single session on standard input and output.
+ *
+ * Protocol (UTF-8, lengths in bytes), one request after the other:
+ *   compile <length>\n<source>             compiles
+ *   run <length>\n<source>                 compiles and runs
+ *   stats\n                                latency histograms
+ *   quit\n                                 ends the session
+ * Every response is
+ *   <status> <compile us> <run us>\n       status: ok, errors (front-end errors), failed (run time error), bad (bad request)
+ * followed by sections "<name> <length>\n<content>" (diagnostics, assembly, output,
+ * error, stats, as they apply) and by "end\n".
+ * Sources are at most MAX_REQUEST bytes: a request with a length out of range is
+ * bad, and its source (if sent) is read as the following requests.
+ * A program nesting too deeply for the stack of the compiler gets errors, as do
+ * programs with front-end errors.
+ * Runs are limited by RUN_TIMEOUT: the time limit is enforced by the budgeted
+ * interpreter loop of ExecuteVM only, so there is no choice of engine.
+ */
+public class CompileServer {
+
+    static final long RUN_TIMEOUT = 10000; // milliseconds
+    static final int MAX_REQUEST = 1 << 24; // bytes of a source
+
+    private final Histogram compileLatency = new Histogram(), runLatency = new Histogram(), requestLatency = new Histogram();
+
+    public static void main(String[] args) throws IOException {
+    	CompileServer server = new CompileServer();
+    	if (args.length == 0) {
+    		server.session(System.in, new FileOutputStream(FileDescriptor.out));
+    		return;
+    	}
+    	try (ServerSocket socket = new ServerSocket(Integer.parseInt(args[0]), 50, InetAddress.getLoopbackAddress())) {
+    		System.err.println("Compile server listening on "+socket.getLocalSocketAddress());
+    		while (true)
+    			try (Socket client = socket.accept()) {
+    				client.setTcpNoDelay(true);
+    				server.session(client.getInputStream(), client.getOutputStream());
+    			} catch (IOException e) {
+    				System.err.println("Session ended: "+e.getMessage());
+    			}
+    	}
+    }
+
+    // serves the requests of a client until quit or end of input
+    void session(InputStream rawIn, OutputStream rawOut) throws IOException {
+    	InputStream in = new BufferedInputStream(rawIn);
+    	OutputStream out = new BufferedOutputStream(rawOut);
+    	String request;
+    	while ((request = readLine(in)) != null) {
+    		String[] words = request.trim().split("\\s+");
+    		if (words[0].equals("quit")) break;
+    		long start = System.nanoTime();
+    		Response response;
+    		try {
+    			switch (words[0]) {
+    				case "compile":
+    				case "run":
+    					int length = Integer.parseInt(words[1]);
+    					if (words.length > 2 || length < 0 || length > MAX_REQUEST) {
+    						response = new Response("bad");
+    						response.section("error", "Malformed request (source lengths from 0 to "+MAX_REQUEST+" bytes): "+request);
+    						break;
+    					}
+    					String source = new String(readBytes(in, length), StandardCharsets.UTF_8);
+    					response = handle(source, words[0].equals("run"));
+    					break;
+    				case "stats":
+    					response = new Response("ok");
+    					response.section("stats", stats());
+    					break;
+    				default:
+    					response = new Response("bad");
+    					response.section("error", "Unknown request: "+request);
+    			}
+    		} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+    			response = new Response("bad");
+    			response.section("error", "Malformed request: "+request);
+    		}
+    		response.write(out);
+    		out.flush();
+    		requestLatency.record(System.nanoTime() - start);
+    	}
+    	out.flush();
+    }
+
+    private Response handle(String source, boolean run) {
+    	long start = System.nanoTime();
+    	ByteArrayOutputStream diagnostics = new ByteArrayOutputStream();
+    	Code code;
+    	int[] program;
+    	try {
+    		code = Compiler.generate(CharStreams.fromString(source), new PrintStream(diagnostics, true, StandardCharsets.UTF_8));
+    		program = code.link(true);
+    	} catch (CompilationException | RuntimeException | StackOverflowError e) {
+    		// the front end may fail on programs with errors, and the visitors recurse as deep as the expressions nest
+    		long failed = System.nanoTime();
+    		compileLatency.record(failed - start);
+    		Response response = new Response("errors");
+    		response.compileMicros = (failed - start)/1000;
+    		response.section("diagnostics", diagnostics.toString(StandardCharsets.UTF_8)+
+    			(e instanceof CompilationException ? e.getMessage() :
+    			 e instanceof StackOverflowError ? "Program nested too deeply to compile" : e.toString())+"\n");
+    		return response;
+    	}
+    	long compiled = System.nanoTime();
+    	compileLatency.record(compiled - start);
+
+    	Response response = new Response("ok");
+    	response.compileMicros = (compiled - start)/1000;
+    	response.section("diagnostics", diagnostics.toString(StandardCharsets.UTF_8));
+    	response.section("assembly", code.toString());
+    	if (run) {
+    		ByteArrayOutputStream output = new ByteArrayOutputStream();
+    		Budget budget = new Budget();
+    		budget.timeoutMillis = RUN_TIMEOUT;
+    		try (ExecuteVM vm = new ExecuteVM(new Program(program), budget, null)) {
+    			vm.setOutput(new PrintStream(output, true, StandardCharsets.UTF_8));
+    			vm.cpu();
+    		} catch (RuntimeException e) { // memory errors, exceeded budget, division by zero
+    			response.status = "failed";
+    			response.section("error", e.toString());
+    		}
+    		long ran = System.nanoTime();
+    		response.runMicros = (ran - compiled)/1000;
+    		runLatency.record(ran - compiled);
+    		response.section("output", output.toString(StandardCharsets.UTF_8));
+    	}
+    	return response;
+    }
+
+    String stats() {
+    	return "compile "+compileLatency+"\n"+"run     "+runLatency+"\n"+"request "+requestLatency+"\n"+
+    		"compile histogram (us):\n"+compileLatency.buckets()+
+    		"run histogram (us):\n"+runLatency.buckets()+
+    		"request histogram (us):\n"+requestLatency.buckets();
+    }
+
+    private static class Response {
+    	String status;
+    	long compileMicros = 0, runMicros = 0;
+    	final List<String[]> sections = new ArrayList<>();
+
+    	Response(String status) {
+    		this.status = status;
+    	}
+
+    	void section(String name, String content) {
+    		sections.add(new String[] {name, content});
+    	}
+
+    	void write(OutputStream out) throws IOException {
+    		out.write((status+" "+compileMicros+" "+runMicros+"\n").getBytes(StandardCharsets.UTF_8));
+    		for (String[] s : sections) {
+    			byte[] content = s[1].getBytes(StandardCharsets.UTF_8);
+    			out.write((s[0]+" "+content.length+"\n").getBytes(StandardCharsets.UTF_8));
+    			out.write(content);
+    		}
+    		out.write("end\n".getBytes(StandardCharsets.UTF_8));
+    	}
+    }
+
+    // latencies in power of two buckets of microseconds
+    static class Histogram {
+    	private final long[] counts = new long[40];
+    	private long total = 0, sumNanos = 0, maxNanos = 0;
+
+    	synchronized void record(long nanos) {
+    		long micros = Math.max(1, nanos/1000);
+    		counts[63 - Long.numberOfLeadingZeros(micros)]++;
+    		total++;
+    		sumNanos += nanos;
+    		maxNanos = Math.max(maxNanos, nanos);
+    	}
+
+    	// upper bound (us) of the bucket holding the given fraction of the samples
+    	private long percentile(double fraction) {
+    		long seen = 0;
+    		for (int b = 0; b < counts.length; b++)
+    			if ((seen += counts[b]) >= Math.ceil(fraction*total)) return 2L << b;
+    		return 0;
+    	}
+
+    	synchronized String buckets() {
+    		StringBuilder s = new StringBuilder();
+    		for (int b = 0; b < counts.length; b++)
+    			if (counts[b] > 0) s.append(String.format("  [%d, %d) %d%n", 1L << b, 2L << b, counts[b]));
+    		return s.toString();
+    	}
+
+    	@Override
+    	public synchronized String toString() {
+    		if (total == 0) return "0 requests";
+    		return String.format("%d requests, mean %d us, p50 < %d us, p90 < %d us, p99 < %d us, max %d us",
+    			total, sumNanos/total/1000, percentile(0.5), percentile(0.9), percentile(0.99), maxNanos/1000);
+    	}
+    }
+
+    static String readLine(InputStream in) throws IOException {
+    	ByteArrayOutputStream line = new ByteArrayOutputStream();
+    	int c;
+    	while ((c = in.read()) != '\n') {
+    		if (c < 0) return line.size() == 0 ? null : line.toString(StandardCharsets.UTF_8);
+    		line.write(c);
+    	}
+    	return line.toString(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] readBytes(InputStream in, int length) throws IOException {
+    	byte[] bytes = new byte[length];
+    	for (int n = 0, r; n < length; n += r)
+    		if ((r = in.read(bytes, n, length - n)) < 0) throw new EOFException("Source shorter than "+length+" bytes");
+    	return bytes;
+    }
+}
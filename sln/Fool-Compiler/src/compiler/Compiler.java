@@ -0,0 +1,133 @@
+package compiler;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
+import org.antlr.v4.runtime.tree.ParseTree;
+import compiler.lib.*;
+import compiler.exc.*;
+import svm.*;
+
+/*
+ * Compiles FOOL programs entirely in memory: the code generator emits the
+ * instructions with symbolic labels and they are linked into the code run by
+ * ExecuteVM, with no assembly text in between.
+ * Nothing is printed but the errors reported by the front end.
+ */
+public class Compiler {
+
+    // version of the code generator, part of the keys of CompilationCache:
+    // to be changed whenever the code generated for some program changes
+    public static final String VERSION = "8";
+
+    public static Code generate(CharStream chars) throws CompilationException {
+    	return generate(chars, System.out);
+    }
+
+    /*
+     * Each compilation runs in its own CompilationSession, current on the calling
+     * thread until the next one starts there: compilations on different threads
+     * are independent, the errors of each going to its diagnostics stream.
+     */
+    public static Code generate(CharStream chars, PrintStream diagnostics) throws CompilationException {
+    	return generate(chars, diagnostics, passes());
+    }
+
+    /*
+     * The optimization passes run by default on the enriched AST, in order: inlining
+     * exposes constants to the folding, and both leave unused declarations to the
+     * dead code elimination, after which the devirtualization knows the classes
+     * instantiated. Each pass is a visitor returning the node to be used in
+     * place of the one visited; their fields are their thresholds and, afterwards,
+     * their counts.
+     */
+    public static List<BaseASTVisitor<Node,VoidException>> passes() {
+    	return List.of(new InliningASTVisitor(), new ConstantFoldingASTVisitor(), new DeadCodeEliminationASTVisitor(),
+    		new DevirtualizationASTVisitor());
+    }
+
+    // with the given optimization passes, in order (none if the list is empty)
+    public static Code generate(CharStream chars, PrintStream diagnostics, List<? extends BaseASTVisitor<Node,VoidException>> passes) throws CompilationException {
+    	FOOLlib.start(new CompilationSession(diagnostics));
+    	Node ast = check(chars);
+    	for (BaseASTVisitor<Node,VoidException> pass : passes) ast = pass.visit(ast);
+    	return new CodeGenerationASTVisitor().visit(ast);
+    }
+
+    // front end only, in the current session: the enriched AST, ready for code generation
+    static Node check(CharStream chars) throws CompilationException {
+    	Parsed parsed = parse(chars, FOOLlib.diagnostics());
+    	Node ast = new ASTGenerationSTVisitor().visit(parsed.st);
+    	SymbolTableASTVisitor symtableVisitor = new SymbolTableASTVisitor();
+    	symtableVisitor.visit(ast);
+    	try {
+    		new TypeCheckEASTVisitor().visit(ast);
+    	} catch (IncomplException | TypeException e) {
+    		// counted in the type errors of the session or due to errors already reported
+    	}
+    	int errors = parsed.errors()+symtableVisitor.stErrors+FOOLlib.session().typeErrors;
+    	if (errors > 0) throw new CompilationException(errors);
+    	return ast;
+    }
+
+    // the parse tree, with the lexer and the parser that produced it (and counted its errors)
+    static class Parsed {
+    	final FOOLLexer lexer;
+    	final FOOLParser parser;
+    	final ParseTree st;
+    	Parsed(FOOLLexer lexer, FOOLParser parser, ParseTree st) {this.lexer = lexer; this.parser = parser; this.st = st;}
+    	int errors() {
+    		return lexer.lexicalErrors+parser.getNumberOfSyntaxErrors();
+    	}
+    }
+
+    // lexing and parsing, the errors reported on diagnostics as by a single LL parse
+    static Parsed parse(CharStream chars, PrintStream diagnostics) {
+    	FOOLLexer lexer = new FOOLLexer(chars);
+    	FOOLParser parser = new FOOLParser(new CommonTokenStream(lexer));
+    	// first stage: SLL prediction, stopping at the first syntax error; the
+    	// invalid chars found meanwhile are reported only if the parse succeeds
+    	ByteArrayOutputStream lexical = new ByteArrayOutputStream();
+    	lexer.diagnostics = new PrintStream(lexical, true, StandardCharsets.UTF_8);
+    	lexer.removeErrorListeners();
+    	lexer.addErrorListener(reporter(lexer.diagnostics));
+    	parser.removeErrorListeners();
+    	parser.setErrorHandler(new BailErrorStrategy());
+    	parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+    	try {
+    		ParseTree st = parser.prog();
+    		diagnostics.print(lexical.toString(StandardCharsets.UTF_8));
+    		return new Parsed(lexer, parser, st);
+    	} catch (ParseCancellationException e) {
+    		// second stage, only for programs with syntax errors (or needing full
+    		// context): lexing and parsing again from the start with full LL
+    		// prediction, the errors reported as by a single LL parse
+    		chars.seek(0);
+    		lexer = new FOOLLexer(chars);
+    		lexer.diagnostics = diagnostics;
+    		lexer.removeErrorListeners();
+    		lexer.addErrorListener(reporter(diagnostics));
+    		parser = new FOOLParser(new CommonTokenStream(lexer));
+    		parser.removeErrorListeners();
+    		parser.addErrorListener(reporter(diagnostics));
+    		return new Parsed(lexer, parser, parser.prog());
+    	}
+    }
+
+    // reports the syntax errors as the default ANTLR listener, on the given stream
+    static ANTLRErrorListener reporter(PrintStream diagnostics) {
+    	return new BaseErrorListener() {
+    		@Override
+    		public void syntaxError(Recognizer<?,?> recognizer, Object symbol, int line, int column, String msg, RecognitionException e) {
+    			diagnostics.println("line "+line+":"+column+" "+msg);
+    		}
+    	};
+    }
+
+    public static int[] compile(CharStream chars) throws CompilationException {
+    	return generate(chars).link(true);
+    }
+}
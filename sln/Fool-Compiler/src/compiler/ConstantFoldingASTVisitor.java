@@ -0,0 +1,265 @@
+package compiler;
+
+import java.util.*;
+import compiler.AST.*;
+import compiler.exc.*;
+import compiler.lib.*;
+
+/*
+ * Constant folding e propagazione delle costanti, dopo il type checking (e
+ * l'inlining, che le espone): gli operatori con operandi costanti sono calcolati
+ * come li calcolerebbe la VM (aritmetica intera a 32 bit, i bool come 0 e 1), le
+ * variabili inizializzate con una costante sono sostituite dal suo valore e degli
+ * if con condizione costante resta solo il ramo scelto.
+ * Inoltre: x+0, 0+x, x-0, x*1, 1*x e x/1 diventano x, !!x diventa x, && e || con
+ * un operando costante si riducono all'altro o a una costante (senza togliere
+ * mai un operando che ha effetti). Le divisioni per zero restano, a run time.
+ * Il nodo di ogni visita e' quello da usare al suo posto; folded conta i nodi
+ * sostituiti.
+ */
+public class ConstantFoldingASTVisitor extends BaseASTVisitor<Node,VoidException> {
+
+	public int folded = 0; // nodi sostituiti da una costante o da un loro operando
+
+	private final Map<STentry, Node> constants = new HashMap<>(); // variabili con valore costante
+
+	public ConstantFoldingASTVisitor() {}
+
+	// valore della costante intera o booleana, null se n non lo e'
+	private static Integer value(Node n) {
+		if (n instanceof IntNode) return ((IntNode) n).val;
+		if (n instanceof BoolNode) return ((BoolNode) n).val ? 1 : 0;
+		return null;
+	}
+
+	private static boolean constant(Node n) {
+		return n instanceof IntNode || n instanceof BoolNode || n instanceof EmptyNode;
+	}
+
+	private <T extends Node> T fold(T result, Node n) {
+		result.setLine(n.getLine());
+		folded++;
+		return result;
+	}
+
+	private Node integer(int v, Node n) {
+		return fold(new IntNode(v), n);
+	}
+
+	private Node bool(boolean v, Node n) {
+		return fold(new BoolNode(v), n);
+	}
+
+	private Node operand(Node operand) {
+		folded++;
+		return operand;
+	}
+
+	@Override
+	public Node visitNode(ProgLetInNode n) {
+		for (Node dec : n.declist) visit(dec);
+		n.exp = visit(n.exp);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(ProgNode n) {
+		n.exp = visit(n.exp);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(FunNode n) {
+		for (Node dec : n.declist) visit(dec);
+		n.exp = visit(n.exp);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(VarNode n) {
+		n.exp = visit(n.exp);
+		if (constant(n.exp)) constants.put(n.entry, n.exp);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(ClassNode n) {
+		for (MethodNode method : n.methods) visit(method);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(MethodNode n) {
+		for (Node dec : n.decList) visit(dec);
+		n.exp = visit(n.exp);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(IdNode n) {
+		Node c = constants.get(n.entry);
+		if (c == null) return n;
+		if (c instanceof EmptyNode) return fold(new EmptyNode(), n);
+		Integer v = value(c);
+		return c instanceof IntNode ? integer(v, n) : bool(v == 1, n);
+	}
+
+	@Override
+	public Node visitNode(PrintNode n) {
+		n.exp = visit(n.exp);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(IfNode n) {
+		n.cond = visit(n.cond);
+		n.th = visit(n.th);
+		n.el = visit(n.el);
+		Integer c = value(n.cond);
+		if (c == null) return n;
+		return operand(c == 1 ? n.th : n.el);
+	}
+
+	@Override
+	public Node visitNode(EqualNode n) {
+		n.left = visit(n.left);
+		n.right = visit(n.right);
+		Integer l = value(n.left), r = value(n.right);
+		if (l != null && r != null) return bool(l.intValue() == r.intValue(), n);
+		if (n.left instanceof EmptyNode && n.right instanceof EmptyNode) return bool(true, n);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(LessEqualNode n) {
+		n.left = visit(n.left);
+		n.right = visit(n.right);
+		Integer l = value(n.left), r = value(n.right);
+		return l != null && r != null ? bool(l <= r, n) : n;
+	}
+
+	@Override
+	public Node visitNode(GreaterEqualNode n) {
+		n.left = visit(n.left);
+		n.right = visit(n.right);
+		Integer l = value(n.left), r = value(n.right);
+		return l != null && r != null ? bool(l >= r, n) : n;
+	}
+
+	@Override
+	public Node visitNode(PlusNode n) {
+		n.left = visit(n.left);
+		n.right = visit(n.right);
+		Integer l = value(n.left), r = value(n.right);
+		if (l != null && r != null) return integer(l + r, n);
+		if (r != null && r == 0) return operand(n.left);
+		if (l != null && l == 0) return operand(n.right);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(MinusNode n) {
+		n.left = visit(n.left);
+		n.right = visit(n.right);
+		Integer l = value(n.left), r = value(n.right);
+		if (l != null && r != null) return integer(l - r, n);
+		if (r != null && r == 0) return operand(n.left);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(TimesNode n) {
+		n.left = visit(n.left);
+		n.right = visit(n.right);
+		Integer l = value(n.left), r = value(n.right);
+		if (l != null && r != null) return integer(l * r, n);
+		if (r != null && r == 1) return operand(n.left);
+		if (l != null && l == 1) return operand(n.right);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(DivNode n) {
+		n.left = visit(n.left);
+		n.right = visit(n.right);
+		Integer l = value(n.left), r = value(n.right);
+		if (l != null && r != null && r != 0) return integer(l / r, n);
+		if (r != null && r == 1) return operand(n.left);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(NotNode n) {
+		n.inner = visit(n.inner);
+		Integer v = value(n.inner);
+		if (v != null) return bool(v != 1, n);
+		if (n.inner instanceof NotNode) return operand(((NotNode) n.inner).inner);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(AndNode n) {
+		n.left = visit(n.left);
+		n.right = visit(n.right);
+		Integer l = value(n.left), r = value(n.right);
+		if (l != null) return l == 1 ? operand(n.right) : bool(false, n); // il secondo operando non e' valutato
+		if (r != null && r == 1) return operand(n.left);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(OrNode n) {
+		n.left = visit(n.left);
+		n.right = visit(n.right);
+		Integer l = value(n.left), r = value(n.right);
+		if (l != null) return l == 1 ? bool(true, n) : operand(n.right); // il secondo operando non e' valutato
+		if (r != null && r != 1) return operand(n.left);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(CallNode n) {
+		n.arglist.replaceAll(this::visit);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(ClassCallNode n) {
+		n.args.replaceAll(this::visit);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(FieldAccessNode n) {
+		n.object = visit(n.object);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(NullCheckNode n) {
+		n.object = visit(n.object);
+		n.exp = visit(n.exp);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(NewNode n) {
+		n.args.replaceAll(this::visit);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(BoolNode n) {
+		return n;
+	}
+
+	@Override
+	public Node visitNode(IntNode n) {
+		return n;
+	}
+
+	@Override
+	public Node visitNode(EmptyNode n) {
+		return n;
+	}
+}
@@ -0,0 +1,281 @@
+package compiler;
+
+import java.util.*;
+import compiler.AST.*;
+import compiler.exc.*;
+import compiler.lib.*;
+
+/*
+ * Dead code elimination sull'intero programma, dopo inlining e constant folding
+ * (che lasciano funzioni non piu' chiamate): a partire dall'espressione del
+ * ProgLetInNode sono raggiungibili le dichiarazioni usate (IdNode, CallNode),
+ * le classi istanziate (NewNode) e i metodi invocati (ClassCallNode, o chiamati
+ * da un altro metodo della stessa classe), e da queste ricorsivamente cio' che
+ * usano i loro corpi. Le variabili il cui valore iniziale ha effetti (print,
+ * chiamate, o errori possibili: divisioni non per una costante, campi di un
+ * oggetto forse null) sono valutate comunque, quindi raggiungibili.
+ * Le dichiarazioni non raggiungibili hanno live a false: il codice non ne genera
+ * ne' il codice ne' l'inizializzazione (la Dispatch Table, per una classe), e le
+ * altre sono rinumerate in modo da non lasciare buchi nei frame e nelle Dispatch
+ * Table (gli offset nelle STentry, condivise dagli usi).
+ * I contatori sono le dichiarazioni eliminate.
+ */
+public class DeadCodeEliminationASTVisitor extends BaseASTVisitor<Node,VoidException> {
+
+	public int functions = 0, methods = 0, classes = 0, variables = 0; // dichiarazioni eliminate
+
+	private final Map<STentry, DecNode> declarations = new HashMap<>();
+	private final Deque<DecNode> reached = new ArrayDeque<>(); // raggiunte, con il corpo ancora da visitare
+
+	public DeadCodeEliminationASTVisitor() {}
+
+	// registra le dichiarazioni, tutte non raggiungibili finche' non sono usate
+	private void register(List<? extends Node> declist) {
+		for (Node dec : declist) {
+			DecNode d = (DecNode) dec;
+			d.live = false;
+			if (dec instanceof FunNode) {
+				declarations.put(((FunNode) dec).entry, d);
+				register(((FunNode) dec).declist);
+			} else if (dec instanceof VarNode) declarations.put(((VarNode) dec).entry, d);
+			else if (dec instanceof ClassNode) {
+				declarations.put(((ClassNode) dec).entry, d);
+				register(((ClassNode) dec).methods);
+			} else if (dec instanceof MethodNode) {
+				declarations.put(((MethodNode) dec).entry, d);
+				register(((MethodNode) dec).decList);
+			}
+		}
+	}
+
+	private void reach(STentry entry) {
+		DecNode dec = declarations.get(entry); // null per parametri e campi
+		if (dec != null && !dec.live) {
+			dec.live = true;
+			reached.add(dec);
+		}
+	}
+
+	// le variabili locali valutate comunque all'ingresso nel corpo
+	private void reachEffects(List<? extends Node> declist) {
+		for (Node dec : declist)
+			if (dec instanceof VarNode && effects(((VarNode) dec).exp)) reach(((VarNode) dec).entry);
+	}
+
+	// valutarla puo' stampare o fallire: le chiamate sono considerate tutte con effetti
+	private static boolean effects(Node n) {
+		if (n instanceof IdNode || n instanceof IntNode || n instanceof BoolNode || n instanceof EmptyNode) return false;
+		if (n instanceof NotNode) return effects(((NotNode) n).inner);
+		if (n instanceof IfNode) return effects(((IfNode) n).cond) || effects(((IfNode) n).th) || effects(((IfNode) n).el);
+		if (n instanceof NewNode) {
+			for (Node arg : ((NewNode) n).args) if (effects(arg)) return true;
+			return false;
+		}
+		if (n instanceof DivNode) {
+			Node right = ((DivNode) n).right;
+			return effects(((DivNode) n).left) || !(right instanceof IntNode && ((IntNode) right).val != 0);
+		}
+		Node left, right;
+		if (n instanceof PlusNode) {left = ((PlusNode) n).left; right = ((PlusNode) n).right;}
+		else if (n instanceof MinusNode) {left = ((MinusNode) n).left; right = ((MinusNode) n).right;}
+		else if (n instanceof TimesNode) {left = ((TimesNode) n).left; right = ((TimesNode) n).right;}
+		else if (n instanceof EqualNode) {left = ((EqualNode) n).left; right = ((EqualNode) n).right;}
+		else if (n instanceof LessEqualNode) {left = ((LessEqualNode) n).left; right = ((LessEqualNode) n).right;}
+		else if (n instanceof GreaterEqualNode) {left = ((GreaterEqualNode) n).left; right = ((GreaterEqualNode) n).right;}
+		else if (n instanceof AndNode) {left = ((AndNode) n).left; right = ((AndNode) n).right;}
+		else if (n instanceof OrNode) {left = ((OrNode) n).left; right = ((OrNode) n).right;}
+		else return true; // print, chiamate, campi
+		return effects(left) || effects(right);
+	}
+
+	/**
+	 * toglie dal frame (o dalla Dispatch Table) le dichiarazioni eliminate: le altre
+	 * prendono gli offset a partire da quello della prima, in ordine
+	 */
+	private void compact(List<? extends Node> declist) {
+		int offset = 0, methodOffset = 0;
+		boolean first = true;
+		for (Node dec : declist) {
+			if (dec instanceof MethodNode) {
+				MethodNode m = (MethodNode) dec;
+				if (!m.live) {methods++; continue;}
+				m.offset = m.entry.offset = methodOffset++;
+				compact(m.decList);
+				continue;
+			}
+			STentry entry = dec instanceof FunNode ? ((FunNode) dec).entry : dec instanceof VarNode ? ((VarNode) dec).entry : ((ClassNode) dec).entry;
+			if (first) offset = entry.offset;
+			first = false;
+			if (((DecNode) dec).live) entry.offset = offset--;
+			if (dec instanceof FunNode) {
+				if (((FunNode) dec).live) compact(((FunNode) dec).declist); else functions++;
+			} else if (dec instanceof ClassNode) {
+				if (((ClassNode) dec).live) compact(((ClassNode) dec).methods); else classes++;
+			} else if (!((VarNode) dec).live) variables++;
+		}
+	}
+
+	@Override
+	public Node visitNode(ProgLetInNode n) {
+		register(n.declist);
+		reachEffects(n.declist);
+		visit(n.exp);
+		while (!reached.isEmpty()) {
+			DecNode dec = reached.remove();
+			if (dec instanceof FunNode) {
+				reachEffects(((FunNode) dec).declist);
+				visit(((FunNode) dec).exp);
+			} else if (dec instanceof MethodNode) {
+				reachEffects(((MethodNode) dec).decList);
+				visit(((MethodNode) dec).exp);
+			} else if (dec instanceof VarNode) visit(((VarNode) dec).exp);
+			// di una classe servono solo i metodi invocati
+		}
+		compact(n.declist);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(ProgNode n) {
+		return n;
+	}
+
+	@Override
+	public Node visitNode(IdNode n) {
+		reach(n.entry);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(CallNode n) {
+		reach(n.entry);
+		for (Node arg : n.arglist) visit(arg);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(ClassCallNode n) {
+		reach(n.entry);
+		reach(n.methodEntry);
+		for (Node arg : n.args) visit(arg);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(NewNode n) {
+		reach(n.entry);
+		for (Node arg : n.args) visit(arg);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(FieldAccessNode n) {
+		visit(n.object);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(NullCheckNode n) {
+		visit(n.object);
+		visit(n.exp);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(PrintNode n) {
+		visit(n.exp);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(IfNode n) {
+		visit(n.cond);
+		visit(n.th);
+		visit(n.el);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(EqualNode n) {
+		visit(n.left);
+		visit(n.right);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(LessEqualNode n) {
+		visit(n.left);
+		visit(n.right);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(GreaterEqualNode n) {
+		visit(n.left);
+		visit(n.right);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(TimesNode n) {
+		visit(n.left);
+		visit(n.right);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(DivNode n) {
+		visit(n.left);
+		visit(n.right);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(PlusNode n) {
+		visit(n.left);
+		visit(n.right);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(MinusNode n) {
+		visit(n.left);
+		visit(n.right);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(NotNode n) {
+		visit(n.inner);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(AndNode n) {
+		visit(n.left);
+		visit(n.right);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(OrNode n) {
+		visit(n.left);
+		visit(n.right);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(BoolNode n) {
+		return n;
+	}
+
+	@Override
+	public Node visitNode(IntNode n) {
+		return n;
+	}
+
+	@Override
+	public Node visitNode(EmptyNode n) {
+		return n;
+	}
+}
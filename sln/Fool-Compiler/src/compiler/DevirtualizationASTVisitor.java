@@ -0,0 +1,229 @@
+package compiler;
+
+import java.util.*;
+import compiler.AST.*;
+import compiler.exc.*;
+import compiler.lib.*;
+
+/*
+ * Devirtualizzazione delle chiamate di metodo, dopo la dead code elimination:
+ * con l'analisi della gerarchia delle classi (CHA) i metodi che una chiamata
+ * ID1.ID2() puo' raggiungere sono quello della classe statica di ID1 e quelli
+ * che lo ridefiniscono nelle sue sottoclassi istanziate. In FOOL non c'e'
+ * ereditarieta': ogni classe e' una foglia della gerarchia e la chiamata ha
+ * un unico metodo possibile se la sua classe e' istanziata (live), altrimenti
+ * nessuno (l'oggetto e' sempre null).
+ * Alle chiamate con un unico metodo possibile e' assegnato target: il codice
+ * salta direttamente alla sua etichetta, senza leggere la Dispatch Table, ma
+ * leggendo il dispatch pointer, cosi' che una chiamata su null fallisca come
+ * prima. Le chiamate a un metodo della stessa classe (CallNode, da un altro
+ * metodo) sono sull'oggetto corrente, mai null, e sono sempre dirette.
+ * Sono contate le chiamate del codice generato (non nelle dichiarazioni
+ * eliminate): devirtualized quelle dirette, virtual quelle rimaste virtuali.
+ */
+public class DevirtualizationASTVisitor extends BaseASTVisitor<Node,VoidException> {
+
+	public int devirtualized = 0, virtual = 0;
+
+	private final Map<STentry, MethodNode> methods = new HashMap<>(); // dalle entry nelle virtual table
+	private final Map<MethodNode, ClassNode> classes = new IdentityHashMap<>(); // classe di ogni metodo
+
+	public DevirtualizationASTVisitor() {}
+
+	// numero di metodi che una chiamata di m puo' raggiungere: senza sottoclassi, m se la sua classe e' istanziata
+	private int targets(MethodNode m) {
+		return classes.get(m).live ? 1 : 0;
+	}
+
+	@Override
+	public Node visitNode(ProgLetInNode n) {
+		for (Node dec : n.declist)
+			if (dec instanceof ClassNode)
+				for (MethodNode m : ((ClassNode) dec).methods) {
+					methods.put(m.entry, m);
+					classes.put(m, (ClassNode) dec);
+				}
+		for (Node dec : n.declist) visit(dec);
+		visit(n.exp);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(ProgNode n) {
+		visit(n.exp);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(FunNode n) {
+		if (!n.live) return n;
+		for (Node dec : n.declist) visit(dec);
+		visit(n.exp);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(VarNode n) {
+		if (n.live) visit(n.exp);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(ClassNode n) {
+		if (n.live)
+			for (MethodNode method : n.methods) visit(method);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(MethodNode n) {
+		if (!n.live) return n;
+		for (Node dec : n.decList) visit(dec);
+		visit(n.exp);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(ClassCallNode n) {
+		for (Node arg : n.args) visit(arg);
+		MethodNode m = methods.get(n.methodEntry);
+		if (targets(m) == 1) {
+			n.target = m;
+			devirtualized++;
+		} else virtual++;
+		return n;
+	}
+
+	@Override
+	public Node visitNode(CallNode n) {
+		for (Node arg : n.arglist) visit(arg);
+		MethodNode m = methods.get(n.entry);
+		if (m != null) { // chiamata da un metodo della stessa classe, istanziata
+			n.target = m;
+			devirtualized++;
+		}
+		return n;
+	}
+
+	@Override
+	public Node visitNode(NewNode n) {
+		for (Node arg : n.args) visit(arg);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(FieldAccessNode n) {
+		visit(n.object);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(NullCheckNode n) {
+		visit(n.object);
+		visit(n.exp);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(PrintNode n) {
+		visit(n.exp);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(IfNode n) {
+		visit(n.cond);
+		visit(n.th);
+		visit(n.el);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(EqualNode n) {
+		visit(n.left);
+		visit(n.right);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(LessEqualNode n) {
+		visit(n.left);
+		visit(n.right);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(GreaterEqualNode n) {
+		visit(n.left);
+		visit(n.right);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(TimesNode n) {
+		visit(n.left);
+		visit(n.right);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(DivNode n) {
+		visit(n.left);
+		visit(n.right);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(PlusNode n) {
+		visit(n.left);
+		visit(n.right);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(MinusNode n) {
+		visit(n.left);
+		visit(n.right);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(NotNode n) {
+		visit(n.inner);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(AndNode n) {
+		visit(n.left);
+		visit(n.right);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(OrNode n) {
+		visit(n.left);
+		visit(n.right);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(IdNode n) {
+		return n;
+	}
+
+	@Override
+	public Node visitNode(BoolNode n) {
+		return n;
+	}
+
+	@Override
+	public Node visitNode(IntNode n) {
+		return n;
+	}
+
+	@Override
+	public Node visitNode(EmptyNode n) {
+		return n;
+	}
+}
@@ -0,0 +1,75 @@
+package compiler;
+
+import java.io.*;
+import java.util.*;
+import org.antlr.v4.runtime.*;
+import svm.*;
+
+/*
+ * Compares the execution engines of ExecuteVM on a FOOL program,
+ * with and without superinstruction fusion in the assembler.
+ * Usage: EngineBenchmark [file.fool [runs]]
+ * The program is compiled and assembled once; every run uses a fresh VM
+ * and the output of the program is discarded. The first runs only warm up the JIT.
+ */
+public class EngineBenchmark {
+
+    static final int WARMUP = 5;
+
+    public static void main(String[] args) throws Exception {
+
+    	String fileName = args.length > 0 ? args[0] : "bench/quicksort-bench.fool";
+    	int runs = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+    	// every engine on the code assembled without and with superinstruction fusion
+    	Code generated = Compiler.generate(CharStreams.fromFileName(fileName));
+    	int[][] code = { assemble(generated, false), assemble(generated, true) };
+    	List<String> names = new ArrayList<>();
+    	List<int[]> programs = new ArrayList<>();
+    	List<ExecuteVM.Engine> engines = new ArrayList<>();
+    	for (int f = 0; f < code.length; f++)
+    		for (ExecuteVM.Engine engine : ExecuteVM.Engine.values()) {
+    			names.add(engine+(f == 1 ? "+fusion" : ""));
+    			programs.add(code[f]);
+    			engines.add(engine);
+    		}
+    	System.out.println(fileName+": "+runs+" runs per configuration after "+WARMUP+" warm-up runs");
+
+    	PrintStream out = System.out;
+    	long[][] times = new long[names.size()][runs];
+    	try {
+    		System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    		for (int r = -WARMUP; r < runs; r++)
+    			for (int c = 0; c < names.size(); c++) { // interleaved, so that all see the same machine state
+    				ExecuteVM vm = new ExecuteVM(programs.get(c));
+    				long start = System.nanoTime();
+    				vm.cpu(engines.get(c));
+    				long time = System.nanoTime() - start;
+    				if (r >= 0) times[c][r] = time;
+    			}
+    	} finally {
+    		System.setOut(out);
+    	}
+
+    	long reference = median(times[0]);
+    	for (int c = 0; c < names.size(); c++)
+    		System.out.printf("%-16s best %8.2f ms  median %8.2f ms  speedup %.2fx%n", names.get(c),
+    			Arrays.stream(times[c]).min().getAsLong()/1e6, median(times[c])/1e6, (double)reference/median(times[c]));
+    }
+
+    static long median(long[] t) {
+    	long[] s = t.clone();
+    	Arrays.sort(s);
+    	return s[s.length/2];
+    }
+
+    static int[] assemble(Code code, boolean fusion) {
+    	Assembler assembler = new Assembler();
+    	assembler.fusion = fusion;
+    	code.assemble(assembler);
+    	int[] program = assembler.link();
+    	System.out.println(assembler.sourceInstructions+" instructions, "+assembler.codeInstructions+
+    		" assembled with fusion "+(fusion?"on":"off")+", "+program.length+" code words");
+    	return program;
+    }
+}
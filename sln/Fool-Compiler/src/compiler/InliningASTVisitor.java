@@ -0,0 +1,499 @@
+package compiler;
+
+import java.util.*;
+import compiler.AST.*;
+import compiler.exc.*;
+import compiler.lib.*;
+
+/*
+ * Inlining, tra type checking e generazione del codice: le chiamate a funzioni e
+ * metodi piccoli sono sostituite dal loro corpo, con gli argomenti al posto dei
+ * parametri, risparmiando frame, salto e ritorno.
+ * Sono inlined le funzioni e i metodi senza dichiarazioni locali, non ricorsivi,
+ * il cui corpo ha al piu' maxSize nodi; i metodi invocati con ID1.ID2() (senza
+ * ereditarieta' il metodo e' quello della classe di ID1) hanno i campi letti
+ * dall'oggetto ID1 (FieldAccessNode) e il corpo preceduto dall'accesso a ID1
+ * (NullCheckNode), che fallisce se e' null come la chiamata, se non e' gia' la
+ * lettura di un campo a farlo per prima; quelli chiamati da un metodo della
+ * stessa classe restano sull'oggetto corrente. Un corpo e' inlined gia' ottimizzato, con
+ * le chiamate inlined al suo interno: maxDepth limita l'annidamento.
+ * Un argomento puo' comparire piu' volte nel corpo solo se e' una variabile o una
+ * costante; se ha effetti (chiamate, print, new, campi di un oggetto forse null,
+ * divisioni non per una costante) la chiamata non e' inlined, cosi' che ogni
+ * argomento sia valutato una volta e nello stesso ordine.
+ * Il nodo di ogni visita e' quello da usare al suo posto (se stesso, o la copia
+ * del corpo inlined); inlined conta le chiamate sostituite.
+ */
+public class InliningASTVisitor extends BaseASTVisitor<Node,VoidException> {
+
+	public int maxSize = 12; // nodi del corpo di una funzione o di un metodo inlined
+	public int maxDepth = 3; // livelli di inlining annidati nel codice di una chiamata
+	public int inlined = 0;  // chiamate sostituite dal corpo del chiamato
+
+	// funzione o metodo candidato all'inlining
+	private static class Callee {
+		final STentry entry; // della dichiarazione: le chiamate ricorsive non sono inlined
+		final int nl;        // nesting level del corpo, quello dei parametri
+		final Node exp;      // corpo, gia' ottimizzato
+		final int depth;     // livelli di inlining nel corpo
+		Callee(STentry entry, int nl, Node exp, int depth) {this.entry = entry; this.nl = nl; this.exp = exp; this.depth = depth;}
+	}
+
+	private final Map<STentry, Callee> callees = new HashMap<>();
+	private int depth = 0; // livelli di inlining nel corpo che si sta visitando
+
+	public InliningASTVisitor() {}
+	public InliningASTVisitor(int maxSize, int maxDepth) {this.maxSize = maxSize; this.maxDepth = maxDepth;}
+
+	// il corpo del chiamato al posto della chiamata call, se possibile
+	private Node inline(Node call, Callee callee, List<Node> args, IdNode receiver, int nl) {
+		if (callee.depth >= maxDepth) return call;
+		Copy copy = new Copy(callee, args, receiver, nl);
+		Node body = copy.visit(callee.exp);
+		if (copy.failed) return call;
+		for (int i = 0; i < args.size(); i++)
+			if (!trivial(args.get(i)) && !(pure(args.get(i)) && copy.uses[i] <= 1)) return call;
+		inlined++;
+		depth = Math.max(depth, callee.depth + 1);
+		// la chiamata fallisce se l'oggetto e' null, anche se il corpo non ne legge i campi
+		if (receiver == null || readsFirst(body, receiver.entry)) return body;
+		NullCheckNode check = new NullCheckNode(receiver, body);
+		check.setLine(call.getLine());
+		return check;
+	}
+
+	// la prima cosa che valutare n puo' fare (fallire o avere effetti) e' leggere un campo dell'oggetto entry
+	private static boolean readsFirst(Node n, STentry entry) {
+		if (n instanceof FieldAccessNode) {
+			Node object = ((FieldAccessNode) n).object;
+			return object instanceof IdNode && ((IdNode) object).entry == entry;
+		}
+		if (n instanceof NullCheckNode) {
+			Node object = ((NullCheckNode) n).object;
+			return object instanceof IdNode && ((IdNode) object).entry == entry || pure(object) && readsFirst(((NullCheckNode) n).exp, entry);
+		}
+		if (n instanceof NotNode) return readsFirst(((NotNode) n).inner, entry);
+		if (n instanceof IfNode) {
+			IfNode i = (IfNode) n;
+			return readsFirst(i.cond, entry) || pure(i.cond) && readsFirst(i.th, entry) && readsFirst(i.el, entry);
+		}
+		if (n instanceof AndNode) return readsFirst(((AndNode) n).left, entry); // il secondo operando puo' non essere valutato
+		if (n instanceof OrNode) return readsFirst(((OrNode) n).left, entry);
+		Node left, right;
+		if (n instanceof PlusNode) {left = ((PlusNode) n).left; right = ((PlusNode) n).right;}
+		else if (n instanceof MinusNode) {left = ((MinusNode) n).left; right = ((MinusNode) n).right;}
+		else if (n instanceof TimesNode) {left = ((TimesNode) n).left; right = ((TimesNode) n).right;}
+		else if (n instanceof DivNode) {left = ((DivNode) n).left; right = ((DivNode) n).right;}
+		else if (n instanceof EqualNode) {left = ((EqualNode) n).left; right = ((EqualNode) n).right;}
+		else if (n instanceof LessEqualNode) {left = ((LessEqualNode) n).left; right = ((LessEqualNode) n).right;}
+		else if (n instanceof GreaterEqualNode) {left = ((GreaterEqualNode) n).left; right = ((GreaterEqualNode) n).right;}
+		else return false;
+		return readsFirst(left, entry) || pure(left) && readsFirst(right, entry);
+	}
+
+	// si puo' valutare piu' volte (o nessuna) senza costi
+	private static boolean trivial(Node n) {
+		return n instanceof IdNode || n instanceof IntNode || n instanceof BoolNode || n instanceof EmptyNode;
+	}
+
+	// senza effetti e senza errori: si puo' valutare dopo, o non valutare
+	private static boolean pure(Node n) {
+		if (trivial(n)) return true;
+		if (n instanceof NotNode) return pure(((NotNode) n).inner);
+		if (n instanceof IfNode) return pure(((IfNode) n).cond) && pure(((IfNode) n).th) && pure(((IfNode) n).el);
+		if (n instanceof DivNode) {
+			Node right = ((DivNode) n).right;
+			return pure(((DivNode) n).left) && right instanceof IntNode && ((IntNode) right).val != 0;
+		}
+		Node left, right;
+		if (n instanceof PlusNode) {left = ((PlusNode) n).left; right = ((PlusNode) n).right;}
+		else if (n instanceof MinusNode) {left = ((MinusNode) n).left; right = ((MinusNode) n).right;}
+		else if (n instanceof TimesNode) {left = ((TimesNode) n).left; right = ((TimesNode) n).right;}
+		else if (n instanceof EqualNode) {left = ((EqualNode) n).left; right = ((EqualNode) n).right;}
+		else if (n instanceof LessEqualNode) {left = ((LessEqualNode) n).left; right = ((LessEqualNode) n).right;}
+		else if (n instanceof GreaterEqualNode) {left = ((GreaterEqualNode) n).left; right = ((GreaterEqualNode) n).right;}
+		else if (n instanceof AndNode) {left = ((AndNode) n).left; right = ((AndNode) n).right;}
+		else if (n instanceof OrNode) {left = ((OrNode) n).left; right = ((OrNode) n).right;}
+		else return false;
+		return pure(left) && pure(right);
+	}
+
+	@Override
+	public Node visitNode(ProgLetInNode n) {
+		for (Node dec : n.declist) visit(dec);
+		n.exp = visit(n.exp);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(ProgNode n) {
+		n.exp = visit(n.exp);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(FunNode n) {
+		int outer = depth;
+		for (Node dec : n.declist) visit(dec);
+		depth = 0;
+		n.exp = visit(n.exp);
+		if (n.declist.isEmpty()) callees.put(n.entry, new Callee(n.entry, n.nl, n.exp, depth));
+		depth = outer;
+		return n;
+	}
+
+	@Override
+	public Node visitNode(VarNode n) {
+		n.exp = visit(n.exp);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(ClassNode n) {
+		for (MethodNode method : n.methods) visit(method);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(MethodNode n) {
+		int outer = depth;
+		for (Node dec : n.decList) visit(dec);
+		depth = 0;
+		n.exp = visit(n.exp);
+		if (n.decList.isEmpty()) callees.put(n.entry, new Callee(n.entry, n.nl, n.exp, depth));
+		depth = outer;
+		return n;
+	}
+
+	@Override
+	public Node visitNode(PrintNode n) {
+		n.exp = visit(n.exp);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(IfNode n) {
+		n.cond = visit(n.cond);
+		n.th = visit(n.th);
+		n.el = visit(n.el);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(EqualNode n) {
+		n.left = visit(n.left);
+		n.right = visit(n.right);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(LessEqualNode n) {
+		n.left = visit(n.left);
+		n.right = visit(n.right);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(GreaterEqualNode n) {
+		n.left = visit(n.left);
+		n.right = visit(n.right);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(TimesNode n) {
+		n.left = visit(n.left);
+		n.right = visit(n.right);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(DivNode n) {
+		n.left = visit(n.left);
+		n.right = visit(n.right);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(PlusNode n) {
+		n.left = visit(n.left);
+		n.right = visit(n.right);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(MinusNode n) {
+		n.left = visit(n.left);
+		n.right = visit(n.right);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(NotNode n) {
+		n.inner = visit(n.inner);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(AndNode n) {
+		n.left = visit(n.left);
+		n.right = visit(n.right);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(OrNode n) {
+		n.left = visit(n.left);
+		n.right = visit(n.right);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(CallNode n) {
+		n.arglist.replaceAll(this::visit);
+		Callee callee = callees.get(n.entry);
+		// un metodo chiamato da un metodo della stessa classe: i campi sono quelli dell'oggetto corrente
+		return callee == null ? n : inline(n, callee, n.arglist, null, n.nl);
+	}
+
+	@Override
+	public Node visitNode(ClassCallNode n) {
+		n.args.replaceAll(this::visit);
+		Callee callee = callees.get(n.methodEntry);
+		if (callee == null) return n;
+		IdNode receiver = new IdNode(n.varName);
+		receiver.entry = n.entry;
+		receiver.nl = n.nestingLevel;
+		receiver.setLine(n.getLine());
+		return inline(n, callee, n.args, receiver, n.nestingLevel);
+	}
+
+	@Override
+	public Node visitNode(FieldAccessNode n) {
+		n.object = visit(n.object);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(NullCheckNode n) {
+		n.object = visit(n.object);
+		n.exp = visit(n.exp);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(NewNode n) {
+		n.args.replaceAll(this::visit);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(IdNode n) {
+		return n;
+	}
+
+	@Override
+	public Node visitNode(BoolNode n) {
+		return n;
+	}
+
+	@Override
+	public Node visitNode(IntNode n) {
+		return n;
+	}
+
+	@Override
+	public Node visitNode(EmptyNode n) {
+		return n;
+	}
+
+	/*
+	 * Copia del corpo di un chiamato per il codice di livello nl della chiamata: i
+	 * parametri sono sostituiti dalle copie degli argomenti, i campi (se c'e' receiver)
+	 * dalla loro lettura da receiver, le altre variabili sono viste dal livello nl.
+	 * Fallisce (failed) se il corpo supera maxSize nodi, se richiama il chiamato o se
+	 * usa cio' che al posto della chiamata non si puo' esprimere (un altro metodo
+	 * dell'oggetto receiver, il metodo di un suo campo o di un argomento non variabile).
+	 * Senza chiamato, copia un argomento cosi' com'e'.
+	 */
+	private class Copy extends BaseASTVisitor<Node,VoidException> {
+
+		final Callee callee;
+		final List<Node> args;
+		final IdNode receiver;
+		final int nl;
+		final int[] uses; // usi di ogni parametro
+		int size = 0;
+		boolean failed = false;
+
+		Copy() {this(null, List.of(), null, 0);}
+
+		Copy(Callee callee, List<Node> args, IdNode receiver, int nl) {
+			this.callee = callee;
+			this.args = args;
+			this.receiver = receiver;
+			this.nl = nl;
+			uses = new int[args.size()];
+		}
+
+		@Override
+		public Node visit(Visitable v, String mark) {
+			if (callee != null && ++size > maxSize) failed = true;
+			return failed ? null : super.visit(v, mark);
+		}
+
+		private Node fail() {
+			failed = true;
+			return null;
+		}
+
+		private <T extends Node> T at(T copy, Node n) {
+			copy.setLine(n.getLine());
+			return copy;
+		}
+
+		private boolean parameter(STentry entry) {
+			return callee != null && entry.nl == callee.nl;
+		}
+
+		private List<Node> copy(List<Node> list) {
+			List<Node> copies = new ArrayList<>();
+			for (Node n : list) copies.add(visit(n));
+			return copies;
+		}
+
+		@Override
+		public Node visitNode(IdNode n) {
+			if (parameter(n.entry)) {
+				uses[n.entry.offset-1]++;
+				return new Copy().visit(args.get(n.entry.offset-1));
+			}
+			if (receiver != null && n.entry.nl == 1) // campo dell'oggetto su cui e' invocato il metodo
+				return at(new FieldAccessNode(new Copy().visit(receiver), n.id, n.entry), n);
+			IdNode copy = at(new IdNode(n.id), n);
+			copy.entry = n.entry;
+			copy.nl = callee == null ? n.nl : nl;
+			return copy;
+		}
+
+		@Override
+		public Node visitNode(CallNode n) {
+			if (callee != null && (n.entry == callee.entry || receiver != null && n.entry.nl == 1)) return fail();
+			CallNode copy = at(new CallNode(n.id, copy(n.arglist)), n);
+			copy.entry = n.entry;
+			copy.nl = callee == null ? n.nl : nl;
+			return copy;
+		}
+
+		@Override
+		public Node visitNode(ClassCallNode n) {
+			if (callee != null && n.methodEntry == callee.entry) return fail();
+			String varName = n.varName;
+			STentry entry = n.entry;
+			if (parameter(n.entry)) { // l'oggetto e' un argomento: solo se e' una variabile
+				Node arg = args.get(n.entry.offset-1);
+				if (!(arg instanceof IdNode)) return fail();
+				uses[n.entry.offset-1]++;
+				varName = ((IdNode) arg).id;
+				entry = ((IdNode) arg).entry;
+			} else if (receiver != null && n.entry.nl == 1) return fail();
+			ClassCallNode copy = at(new ClassCallNode(varName, n.methodName, copy(n.args)), n);
+			copy.entry = entry;
+			copy.methodEntry = n.methodEntry;
+			copy.nestingLevel = callee == null ? n.nestingLevel : nl;
+			return copy;
+		}
+
+		@Override
+		public Node visitNode(FieldAccessNode n) {
+			return at(new FieldAccessNode(visit(n.object), n.id, n.entry), n);
+		}
+
+		@Override
+		public Node visitNode(NullCheckNode n) {
+			return at(new NullCheckNode(visit(n.object), visit(n.exp)), n);
+		}
+
+		@Override
+		public Node visitNode(NewNode n) {
+			NewNode copy = at(new NewNode(n.classId, copy(n.args)), n);
+			copy.entry = n.entry;
+			return copy;
+		}
+
+		@Override
+		public Node visitNode(PrintNode n) {
+			return at(new PrintNode(visit(n.exp)), n);
+		}
+
+		@Override
+		public Node visitNode(IfNode n) {
+			return at(new IfNode(visit(n.cond), visit(n.th), visit(n.el)), n);
+		}
+
+		@Override
+		public Node visitNode(EqualNode n) {
+			return at(new EqualNode(visit(n.left), visit(n.right)), n);
+		}
+
+		@Override
+		public Node visitNode(LessEqualNode n) {
+			return at(new LessEqualNode(visit(n.left), visit(n.right)), n);
+		}
+
+		@Override
+		public Node visitNode(GreaterEqualNode n) {
+			return at(new GreaterEqualNode(visit(n.left), visit(n.right)), n);
+		}
+
+		@Override
+		public Node visitNode(TimesNode n) {
+			return at(new TimesNode(visit(n.left), visit(n.right)), n);
+		}
+
+		@Override
+		public Node visitNode(DivNode n) {
+			return at(new DivNode(visit(n.left), visit(n.right)), n);
+		}
+
+		@Override
+		public Node visitNode(PlusNode n) {
+			return at(new PlusNode(visit(n.left), visit(n.right)), n);
+		}
+
+		@Override
+		public Node visitNode(MinusNode n) {
+			return at(new MinusNode(visit(n.left), visit(n.right)), n);
+		}
+
+		@Override
+		public Node visitNode(NotNode n) {
+			return at(new NotNode(visit(n.inner)), n);
+		}
+
+		@Override
+		public Node visitNode(AndNode n) {
+			return at(new AndNode(visit(n.left), visit(n.right)), n);
+		}
+
+		@Override
+		public Node visitNode(OrNode n) {
+			return at(new OrNode(visit(n.left), visit(n.right)), n);
+		}
+
+		@Override
+		public Node visitNode(BoolNode n) {
+			return at(new BoolNode(n.val), n);
+		}
+
+		@Override
+		public Node visitNode(IntNode n) {
+			return at(new IntNode(n.val), n);
+		}
+
+		@Override
+		public Node visitNode(EmptyNode n) {
+			return at(new EmptyNode(), n);
+		}
+	}
+}
@@ -0,0 +1,64 @@
+package compiler;
+
+import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import svm.*;
+
+/*
+ * Parser throughput with full LL prediction (the ANTLR default) and with SLL
+ * prediction (the first stage of Compiler.parse and SVMParser.assemble), on a
+ * generated FOOL program and on its assembly text.
+ * Usage: ParserBenchmark [functions [runs]]
+ * The input is lexed once, only parsing is timed (for SVM, with the assembly
+ * done by the actions of the grammar); rates are on the tokens of the default
+ * channel and on the lines of the input.
+ */
+public class ParserBenchmark {
+
+    static final int WARMUP = 5;
+
+    public static void main(String[] args) throws Exception {
+
+    	int functions = args.length > 0 ? Integer.parseInt(args[0]) : 4000;
+    	int runs = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+    	String fool = CodeGenBenchmark.program(functions);
+    	String svm = Compiler.generate(CharStreams.fromString(fool)).toString();
+
+    	System.out.printf("%-5s %6s %9s %9s %10s %12s %12s %8s%n", "input", "mode", "lines", "tokens", "parse ms", "tokens/s", "lines/s", "speed-up");
+    	CommonTokenStream foolTokens = new CommonTokenStream(new FOOLLexer(CharStreams.fromString(fool)));
+    	foolTokens.fill();
+    	long ll = time(foolTokens, PredictionMode.LL, false, runs);
+    	long sll = time(foolTokens, PredictionMode.SLL, false, runs);
+    	print("FOOL", fool, foolTokens, ll, sll);
+
+    	CommonTokenStream svmTokens = new CommonTokenStream(new SVMLexer(CharStreams.fromString(svm)));
+    	svmTokens.fill();
+    	ll = time(svmTokens, PredictionMode.LL, true, runs);
+    	sll = time(svmTokens, PredictionMode.SLL, true, runs);
+    	print("SVM", svm, svmTokens, ll, sll);
+    }
+
+    // median time of a parse of the tokens in the given prediction mode
+    static long time(CommonTokenStream tokens, PredictionMode mode, boolean svm, int runs) {
+    	long[] t = new long[runs];
+    	for (int r = -WARMUP; r < runs; r++) {
+    		tokens.seek(0);
+    		long start = System.nanoTime();
+    		Parser parser = svm ? new SVMParser(tokens) : new FOOLParser(tokens);
+    		parser.removeErrorListeners();
+    		parser.setErrorHandler(new BailErrorStrategy());
+    		parser.getInterpreter().setPredictionMode(mode);
+    		if (svm) ((SVMParser) parser).assembly(); else ((FOOLParser) parser).prog();
+    		if (r >= 0) t[r] = System.nanoTime() - start;
+    	}
+    	return EngineBenchmark.median(t);
+    }
+
+    static void print(String input, String text, CommonTokenStream tokens, long ll, long sll) {
+    	long lines = text.chars().filter(c -> c == '\n').count();
+    	int n = tokens.getNumberOfOnChannelTokens();
+    	System.out.printf("%-5s %6s %9d %9d %10.2f %12.0f %12.0f%n", input, "LL", lines, n, ll/1e6, n/(ll/1e9), lines/(ll/1e9));
+    	System.out.printf("%-5s %6s %9d %9d %10.2f %12.0f %12.0f %7.2fx%n", input, "SLL", lines, n, sll/1e6, n/(sll/1e9), lines/(sll/1e9), (double)ll/sll);
+    }
+}
@@ -239,6 +239,21 @@ public class PrintEASTVisitor extends BaseEASTVisitor<Void,VoidException> {
 		return null;
 	}
 
+	@Override
+	public Void visitNode(FieldAccessNode n){
+		printNode(n, n.id);
+		visit(n.object);
+		return null;
+	}
+
+	@Override
+	public Void visitNode(NullCheckNode n){
+		printNode(n);
+		visit(n.object);
+		visit(n.exp);
+		return null;
+	}
+
 	@Override
 	public Void visitNode(RefTypeNode n){
 		printNode(n, n.classID);
@@ -0,0 +1,491 @@
+package compiler;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.concurrent.*;
+import org.antlr.v4.runtime.*;
+import compiler.exc.*;
+import compiler.lib.*;
+import svm.*;
+
+/*
+ * Regression checks of the compiler and the VM, on the programs in bench and on
+ * small programs of their own.
+ * Usage: RegressionTest (from the project directory, as the benchmarks)
+ * Every check prints ok or FAILED with what went wrong; the exit status is 1
+ * if any check failed.
+ */
+public class RegressionTest {
+
+    static int failures = 0;
+
+    public static void main(String[] args) throws Exception {
+    	parsing();
+    	heapLimits();
+    	engines();
+    	budgets();
+    	inlinedNullReceiver();
+    	inliningLimits();
+    	folding();
+    	tailCalls();
+    	compileServer();
+    	cache();
+    	batch();
+    	System.out.println(failures == 0 ? "All checks passed." : failures+" checks FAILED.");
+    	if (failures > 0) System.exit(1);
+    }
+
+    /*
+     * The parse in two stages (SLL, then LL only after a syntax error) reports the
+     * same diagnostics and counts the same errors as a single LL parse, and builds
+     * the same tree, on programs with invalid chars, syntax errors or both.
+     */
+    static void parsing() {
+    	for (String source : List.of("print(1+2);", "print(1+#2);", "print(1 # 2);", "let var x:int = ; in print(x);",
+    			"print(if 1 then {2} else {3});", "let fun f:int (a:int) a+; in print(f(1) $ );", "let var x:int = 1; in print(x) @",
+    			"let class C (a:int) { fun m:int () a; } var c:C = new C(1; in print(c.m());")) {
+    		ByteArrayOutputStream twoStages = new ByteArrayOutputStream(), single = new ByteArrayOutputStream();
+    		Compiler.Parsed parsed = Compiler.parse(CharStreams.fromString(source), new PrintStream(twoStages, true));
+    		PrintStream diagnostics = new PrintStream(single, true);
+    		FOOLLexer lexer = new FOOLLexer(CharStreams.fromString(source));
+    		lexer.diagnostics = diagnostics;
+    		lexer.removeErrorListeners();
+    		lexer.addErrorListener(Compiler.reporter(diagnostics));
+    		FOOLParser parser = new FOOLParser(new CommonTokenStream(lexer));
+    		parser.removeErrorListeners();
+    		parser.addErrorListener(Compiler.reporter(diagnostics));
+    		String tree = parser.prog().toStringTree(parser);
+    		check("parsing "+source, single.toString()+(lexer.lexicalErrors+parser.getNumberOfSyntaxErrors())+" errors, "+tree,
+    			twoStages.toString()+parsed.errors()+" errors, "+parsed.st.toStringTree(parsed.parser));
+    	}
+    }
+
+    /*
+     * The heap grows up to its limit whatever the limit is: with a limit that is not
+     * the initial capacity times a power of two, the last growth must stop at the limit.
+     * In the small heaps the program runs the same collecting garbage, and the
+     * statistics of the collector count the collections, their pauses and the words
+     * reclaimed.
+     */
+    static void heapLimits() throws Exception {
+    	String fileName = "bench/quicksort-bench.fool";
+    	Program program = new Program(Compiler.compile(CharStreams.fromFileName(fileName)));
+    	String expected = run(program, null, ExecuteVM.Engine.SWITCH);
+    	for (int heap : new int[] {20000, 50000})
+    		for (ExecuteVM.Engine engine : ExecuteVM.Engine.values()) {
+    			Budget budget = new Budget();
+    			budget.heap = heap;
+    			ByteArrayOutputStream out = new ByteArrayOutputStream();
+    			String collected;
+    			try (ExecuteVM vm = new ExecuteVM(program, budget, null)) {
+    				vm.setOutput(new PrintStream(out, true));
+    				vm.cpu(engine);
+    				GarbageCollector gc = vm.getGC();
+    				collected = (gc.getCollections() > 0)+" "+(gc.getTotalPauseNanos() > 0)+" "+(gc.getBytesReclaimed() > 0);
+    			} catch (RuntimeException e) {
+    				out.writeBytes(e.toString().getBytes());
+    				collected = "stopped";
+    			}
+    			check(fileName+", heap of "+heap+" words, "+engine, expected, out.toString());
+    			check(fileName+", heap of "+heap+" words, "+engine+", collections, pauses, words reclaimed", "true true true", collected);
+    		}
+    }
+
+    /*
+     * Every engine runs as SWITCH, with and without superinstruction fusion: the
+     * programs in bench and generated workloads print the same, or stop with the
+     * same error.
+     */
+    static void engines() throws Exception {
+    	List<String> names = new ArrayList<>(), sources = new ArrayList<>();
+    	try (DirectoryStream<Path> files = Files.newDirectoryStream(Paths.get("bench"), "*.fool")) {
+    		for (Path f : files) {
+    			names.add(f.toString());
+    			sources.add(Files.readString(f));
+    		}
+    	}
+    	Random random = new Random(3);
+    	for (int i = 0; i < 20; i++) {
+    		String parameters = "seed="+i+",classes="+random.nextInt(3)+",methods="+random.nextInt(4)+",fields="+random.nextInt(4)+
+    			",functions="+random.nextInt(5)+",nesting="+random.nextInt(4)+",depth="+(2+random.nextInt(8))+
+    			",recursion="+random.nextInt(100)+",alloc="+random.nextInt(6);
+    		names.add("workload:"+parameters);
+    		sources.add(WorkloadGenerator.generate(parameters));
+    	}
+    	for (int i = 0; i < names.size(); i++) {
+    		Code code = Compiler.generate(CharStreams.fromString(sources.get(i)));
+    		String expected = run(new Program(code.link(false)), null, ExecuteVM.Engine.SWITCH);
+    		List<String> different = new ArrayList<>();
+    		for (boolean fusion : new boolean[] {false, true}) {
+    			Program program = new Program(code.link(fusion));
+    			for (ExecuteVM.Engine engine : ExecuteVM.Engine.values())
+    				if (!run(program, null, engine).equals(expected)) different.add(engine+(fusion ? "+fusion" : ""));
+    		}
+    		check(names.get(i)+", every engine", "[]", different.toString());
+    	}
+    }
+
+    /*
+     * An endless loop stops at the limit of its budget, on every engine, telling
+     * the branch it was at and the instructions executed: the two before the loop,
+     * then three for each time round it (push, pop, b).
+     */
+    static void budgets() {
+    	Program loop = new Program(SVMParser.assemble(CharStreams.fromString("push 1\npop\nloop:\npush 2\npop\nb loop\n"), false).code);
+    	for (ExecuteVM.Engine engine : ExecuteVM.Engine.values()) {
+    		Budget budget = new Budget();
+    		budget.instructions = 1000;
+    		BudgetException e = exceeded(loop, budget, engine);
+    		check("endless loop, 1000 instructions, "+engine, "INSTRUCTIONS at 6 after 1001",
+    			e == null ? "not stopped" : e.limit+" at "+e.ip+" after "+e.executed);
+    		budget = new Budget();
+    		budget.timeoutMillis = 50;
+    		long start = System.nanoTime();
+    		e = exceeded(loop, budget, engine);
+    		long millis = (System.nanoTime() - start)/1000000;
+    		check("endless loop, 50 ms, "+engine, "TIME at 6 after 3k+2 in 50 ms or more",
+    			e == null ? "not stopped" : e.limit+" at "+e.ip+" after "+(e.executed > 2 && e.executed % 3 == 2 ? "3k+2" : e.executed)+
+    			" in "+(millis >= 50 ? "50 ms or more" : millis+" ms"));
+    	}
+    }
+
+    // the exception stopping the run, null if it ends within the budget
+    static BudgetException exceeded(Program program, Budget budget, ExecuteVM.Engine engine) {
+    	try (ExecuteVM vm = new ExecuteVM(program, budget, null)) {
+    		vm.cpu(engine);
+    		return null;
+    	} catch (BudgetException e) {
+    		return e;
+    	}
+    }
+
+    /*
+     * An inlined method call fails on a null object as the call does, also when the
+     * body reads no field of the object.
+     */
+    static void inlinedNullReceiver() throws Exception {
+    	String fields = "let class P (x:int) { fun sum:int (k:int) k+x; } var p:P = null; in print(print(5)+p.sum(1));";
+    	String noFields = "let class P (x:int) { fun sum:int (k:int) k+1; } var p:P = null; in print(print(5)+p.sum(1));";
+    	samePasses("inlined method reading a field, null object", fields);
+    	samePasses("inlined method reading no field, null object", noFields);
+    	samePasses("inlined method reading no field", noFields.replace("null", "new P(2)"));
+    	samePasses("inlined method printing before reading a field, null object", fields.replace("k+x", "print(k)+x"));
+    }
+
+    /*
+     * The calls inlined within the size and depth limits, on a chain of functions:
+     * a (body of 3 nodes) called by b (5 nodes with a inlined), called by c (4 nodes,
+     * 7 with b inlined), called twice by the program.
+     */
+    static void inliningLimits() throws Exception {
+    	String chain = "let fun a:int (x:int) x+1; fun b:int (x:int) a(x)*2; fun c:int (x:int) b(x)-3; in print(c(1)+c(2));";
+    	int[][] limits = { // maxSize, maxDepth, calls inlined
+    		{12, 3, 4}, // all
+    		{12, 2, 2}, // a in b, b in c; c is two levels deep
+    		{12, 1, 3}, // a in b, c in the program; b is one level deep
+    		{12, 0, 0},
+    		{4, 3, 3},  // a in b, c in the program; b is too big
+    		{3, 3, 1},  // a in b only
+    		{2, 3, 0}};
+    	for (int[] l : limits) {
+    		InliningASTVisitor inliner = new InliningASTVisitor(l[0], l[1]);
+    		String output = run(compile(chain, List.of(inliner)), null, ExecuteVM.Engine.SWITCH).trim();
+    		check("inlining with at most "+l[0]+" nodes, "+l[1]+" levels", l[2]+" inlined, printing 4", inliner.inlined+" inlined, printing "+output);
+    	}
+    }
+
+    /*
+     * Constant folding computes as the VM does: bench/fold-bench.fool prints its
+     * result with and without folding (alone, after inlining, with all the passes),
+     * as do the other programs and generated workloads with all the passes.
+     */
+    static void folding() throws Exception {
+    	String fold = Files.readString(Paths.get("bench/fold-bench.fool"));
+    	check("bench/fold-bench.fool", "214992\n", run(compile(fold, List.of()), null, ExecuteVM.Engine.SWITCH));
+    	samePasses("bench/fold-bench.fool, folded", fold, List.of(new ConstantFoldingASTVisitor()));
+    	samePasses("bench/fold-bench.fool, inlined and folded", fold, List.of(new InliningASTVisitor(), new ConstantFoldingASTVisitor()));
+    	for (String fileName : List.of("quicksort.fool", "classe.fool", "prova.fool", "bench/quicksort-bench.fool",
+    			"bench/arith-bench.fool", "bench/tailcall-bench.fool", "bench/fold-bench.fool"))
+    		samePasses(fileName, Files.readString(Paths.get(fileName)));
+    	// what is left to run time: division by a constant zero, overflow, effects of dropped operands
+    	samePasses("division by zero", "print(print(1)/0);");
+    	samePasses("overflow", "print(2147483647+1 <= 0);");
+    	samePasses("effects of && and ||", "print(if (false && print(true) || print(false)) then {1} else {2});");
+    	Random random = new Random(23);
+    	int different = 0;
+    	for (int i = 0; i < 50; i++) {
+    		String parameters = "seed="+i+",classes="+random.nextInt(3)+",methods="+random.nextInt(4)+",fields="+random.nextInt(4)+
+    			",functions="+random.nextInt(5)+",nesting="+random.nextInt(4)+",depth="+(2+random.nextInt(8))+
+    			",recursion="+random.nextInt(100)+",alloc="+random.nextInt(6);
+    		if (!samePasses(WorkloadGenerator.generate(parameters))) {
+    			different++;
+    			System.out.println("        different output, optimized: workload:"+parameters);
+    		}
+    	}
+    	check("50 generated workloads, optimized", "0 different", different+" different");
+    	foldedConstructs();
+    }
+
+    /*
+     * What folding leaves of each construct, and what it prints: a pass that stops
+     * folding one of them leaves its operator in the AST (shown by its class).
+     */
+    static void foldedConstructs() throws Exception {
+    	folded("arithmetic", "print(7*6-(10/3)+1);", "print(40)", "40");
+    	folded("comparisons", "print((2 >= 3) == (1 <= 0));", "print(true)", "1");
+    	folded("&&, || and !", "print(!(true && false) || false);", "print(true)", "1");
+    	folded("propagated variables", "let var x:int = 6; var y:int = x*7; in print(y);", "print(42)", "42");
+    	folded("if with a constant condition", "let fun f:int (a:int) a+1; in print(if (1+1 == 3) then {0} else {f(41)});", "print(f(41))", "42");
+    }
+
+    // the expression of the program after constant folding alone, and its output
+    static void folded(String name, String source, String expected, String output) throws Exception {
+    	FOOLlib.start(new CompilationSession(System.out));
+    	Node ast = new ConstantFoldingASTVisitor().visit(Compiler.check(CharStreams.fromString(source)));
+    	Node exp = ast instanceof AST.ProgLetInNode ? ((AST.ProgLetInNode) ast).exp : ((AST.ProgNode) ast).exp;
+    	check("folded "+name, expected+" printing "+output, shape(exp)+" printing "+run(compile(source, List.of(new ConstantFoldingASTVisitor())), null, ExecuteVM.Engine.SWITCH).trim());
+    }
+
+    // constants, prints and calls with their arguments; any other node by its class
+    static String shape(Node n) {
+    	if (n instanceof AST.IntNode) return ((AST.IntNode) n).val.toString();
+    	if (n instanceof AST.BoolNode) return ((AST.BoolNode) n).val.toString();
+    	if (n instanceof AST.PrintNode) return "print("+shape(((AST.PrintNode) n).exp)+")";
+    	if (n instanceof AST.CallNode) {
+    		StringJoiner args = new StringJoiner(",", ((AST.CallNode) n).id+"(", ")");
+    		for (Node arg : ((AST.CallNode) n).arglist) args.add(shape(arg));
+    		return args.toString();
+    	}
+    	return n.getClass().getSimpleName();
+    }
+
+    /*
+     * Tail calls run in constant stack: bench/tailcall-bench.fool recurses through
+     * lists of 300000 elements, beyond the default stack of the VM with a frame for
+     * each call, and runs on every engine only reusing the frames (tjs).
+     */
+    static void tailCalls() throws Exception {
+    	String fileName = "bench/tailcall-bench.fool";
+    	String source = Files.readString(Paths.get(fileName));
+    	for (ExecuteVM.Engine engine : ExecuteVM.Engine.values())
+    		check(fileName+", "+engine, "824225\n", run(compile(source, Compiler.passes()), null, engine));
+    	FOOLlib.start(new CompilationSession(System.out));
+    	Node ast = Compiler.check(CharStreams.fromString(source));
+    	for (BaseASTVisitor<Node,VoidException> pass : Compiler.passes()) ast = pass.visit(ast);
+    	Program program = new Program(new CodeGenerationASTVisitor(false, false).visit(ast).link(true));
+    	check(fileName+", without tjs", BudgetException.class.getName()+": Stack overflow: stack limited to "+ExecuteVM.STACKSIZE+" words",
+    		run(program, null, ExecuteVM.Engine.SWITCH));
+    }
+
+    /*
+     * The compile server answers errors to a program nesting beyond the stack of
+     * the compiler, and goes on serving the session.
+     */
+    static void compileServer() throws Exception {
+    	String deep = "print("+"(".repeat(50000)+"1"+")".repeat(50000)+");";
+    	ByteArrayOutputStream requests = new ByteArrayOutputStream();
+    	for (String source : List.of(deep, "print(7);")) {
+    		byte[] bytes = source.getBytes(StandardCharsets.UTF_8);
+    		requests.write(("run "+bytes.length+"\n").getBytes(StandardCharsets.UTF_8));
+    		requests.write(bytes);
+    	}
+    	requests.write("quit\n".getBytes(StandardCharsets.UTF_8));
+    	ByteArrayOutputStream responses = new ByteArrayOutputStream();
+    	new CompileServer().session(new ByteArrayInputStream(requests.toByteArray()), responses);
+    	// the status of each response, and the output section if any
+    	InputStream in = new ByteArrayInputStream(responses.toByteArray());
+    	StringBuilder summary = new StringBuilder();
+    	String line;
+    	while ((line = CompileServer.readLine(in)) != null) {
+    		summary.append(line.split(" ")[0]);
+    		while (!(line = CompileServer.readLine(in)).equals("end")) {
+    			String[] section = line.split(" ");
+    			byte[] content = in.readNBytes(Integer.parseInt(section[1]));
+    			if (section[0].equals("output")) summary.append(" ").append(new String(content, StandardCharsets.UTF_8).trim());
+    		}
+    		summary.append("\n");
+    	}
+    	check("compile server, program nested 50000 times then print(7)", "errors\nok 7\n", summary.toString());
+    }
+
+    /*
+     * Compilation cache: a truncated or corrupted entry is a miss, compiled and
+     * written again; entries replaced concurrently are always whole; the least
+     * recently used entries are evicted first.
+     */
+    static void cache() throws Exception {
+    	Path dir = Files.createTempDirectory("foolcache");
+    	try {
+    		String source = Files.readString(Paths.get("quicksort.fool")), wrong = "let var y:int = 1; in print(x+y);";
+    		int[] expected = Compiler.compile(CharStreams.fromString(source));
+    		CompilationCache cache = new CompilationCache(dir);
+    		cache.compile(source, true);
+    		Path object = entries(dir, "svm").get(0);
+    		check("cache, hit", "true 1", Arrays.equals(expected, cache.compile(source, true).getCode())+" "+cache.getHits());
+    		byte[] bytes = Files.readAllBytes(object);
+    		Files.write(object, Arrays.copyOf(bytes, bytes.length/2));
+    		check("cache, truncated object file", "true 2 misses", Arrays.equals(expected, cache.compile(source, true).getCode())+" "+cache.getMisses()+" misses");
+    		Files.write(object, new byte[] {1, 2, 3});
+    		check("cache, corrupted object file", "true 3 misses", Arrays.equals(expected, cache.compile(source, true).getCode())+" "+cache.getMisses()+" misses");
+    		check("cache, object file written again", "true", Arrays.equals(expected, Program.load(ObjectFile.load(object)).getCode())+"");
+
+    		String errors = compileErrors(cache, wrong);
+    		check("cache, program with errors", "1 errors", errors);
+    		Path entry = entries(dir, "err").get(0);
+    		for (String corrupted : List.of("", "no errors\n", "1")) {
+    			Files.writeString(entry, corrupted);
+    			long misses = cache.getMisses();
+    			check("cache, error entry \""+corrupted.trim()+"\"", errors+" 1 miss", compileErrors(cache, wrong)+" "+(cache.getMisses() - misses)+" miss");
+    		}
+
+    		// compiled at the same time by many threads, into the same entries: whole whenever read
+    		List<String> sources = new ArrayList<>();
+    		for (int i = 0; i < 4; i++) sources.add(WorkloadGenerator.generate("seed="+i));
+    		List<int[]> compiled = new ArrayList<>();
+    		for (String s : sources) compiled.add(Compiler.compile(CharStreams.fromString(s)));
+    		List<Callable<Boolean>> tasks = new ArrayList<>();
+    		for (int t = 0; t < 32; t++) {
+    			int i = t % sources.size();
+    			tasks.add(() -> Arrays.equals(compiled.get(i), new CompilationCache(dir).compile(sources.get(i), true).getCode()));
+    		}
+    		ExecutorService pool = Executors.newFixedThreadPool(8);
+    		int different = 0;
+    		try {
+    			for (Future<Boolean> f : pool.invokeAll(tasks)) if (!f.get()) different++;
+    		} finally {
+    			pool.shutdown();
+    		}
+    		List<Path> left;
+    		try (var files = Files.list(dir)) {
+    			left = files.filter(f -> f.toString().endsWith(".tmp")).toList();
+    		}
+    		check("cache, concurrent replacement", "0 different, 0 temporary files", different+" different, "+left.size()+" temporary files");
+
+    		// a, b, c of the same size, room for two: b, the least recently used, is evicted by c
+    		for (Path f : entries(dir, "svm")) Files.delete(f);
+    		Files.deleteIfExists(entry);
+    		String a = "print(1);", b = "print(2);", c = "print(3);";
+    		new CompilationCache(dir).compile(a, true);
+    		long size = Files.size(entries(dir, "svm").get(0));
+    		CompilationCache bounded = new CompilationCache(dir, 2*size + size/2);
+    		bounded.compile(b, true);
+    		long now = System.currentTimeMillis();
+    		for (Path f : entries(dir, "svm"))
+    			Files.setLastModifiedTime(f, FileTime.fromMillis(now - 20000));
+    		bounded.compile(a, true); // a is used again
+    		bounded.compile(c, true);
+    		Set<String> kept = new TreeSet<>(); // what the programs left print
+    		for (Path f : entries(dir, "svm")) kept.add(run(Program.load(ObjectFile.load(f)), null, ExecuteVM.Engine.SWITCH).trim());
+    		check("cache, least recently used evicted", "[1, 3]", kept.toString());
+    	} finally {
+    		try (var files = Files.list(dir)) {
+    			for (Path f : files.toList()) Files.delete(f);
+    		}
+    		Files.delete(dir);
+    	}
+    }
+
+    /*
+     * The batch compiler, on a ForkJoin pool, writes for each program the code a
+     * sequential compilation links: the sample programs, those in bench and
+     * generated workloads, each twice so that the same program compiles on
+     * different workers at once.
+     */
+    static void batch() throws Exception {
+    	List<String> sources = new ArrayList<>();
+    	for (String fileName : List.of("quicksort.fool", "classe.fool", "prova.fool", "bench/quicksort-bench.fool",
+    			"bench/arith-bench.fool", "bench/tailcall-bench.fool", "bench/fold-bench.fool"))
+    		sources.add(Files.readString(Paths.get(fileName)));
+    	for (int i = 0; i < 40; i++) sources.add(WorkloadGenerator.generate("seed="+i+",classes="+(i%3)+",functions="+(i%5)+",nesting="+(i%4)));
+    	Path dir = Files.createTempDirectory("foolbatch");
+    	try {
+    		List<Path> files = new ArrayList<>();
+    		List<int[]> expected = new ArrayList<>();
+    		for (int copy = 0; copy < 2; copy++)
+    			for (int i = 0; i < sources.size(); i++) {
+    				Path file = dir.resolve(copy+"-"+i+".fool");
+    				Files.writeString(file, sources.get(i));
+    				files.add(file);
+    			}
+    		for (Path file : files) expected.add(Compiler.generate(CharStreams.fromPath(file), new PrintStream(OutputStream.nullOutputStream())).link(true));
+    		BatchCompiler batch = new BatchCompiler(files, true);
+    		ForkJoinPool pool = new ForkJoinPool(8);
+    		try {
+    			pool.invoke(batch.new Compile(0, files.size()));
+    		} finally {
+    			pool.shutdown();
+    		}
+    		int different = 0;
+    		for (int f = 0; f < files.size(); f++)
+    			if (batch.results[f].errors != 0 || !Arrays.equals(expected.get(f), ObjectFile.load(Paths.get(files.get(f)+".svm")).getCode())) {
+    				different++;
+    				System.out.println("        different code: "+files.get(f)+" "+batch.results[f].message);
+    			}
+    		check(files.size()+" programs compiled in parallel", "0 different", different+" different");
+    	} finally {
+    		try (var files = Files.list(dir)) {
+    			for (Path f : files.toList()) Files.delete(f);
+    		}
+    		Files.delete(dir);
+    	}
+    }
+
+    // the entries of the cache with the given extension
+    static List<Path> entries(Path dir, String extension) throws IOException {
+    	try (var files = Files.list(dir)) {
+    		return files.filter(f -> f.toString().endsWith("."+extension)).sorted().toList();
+    	}
+    }
+
+    // the diagnostics of a program with front-end errors, from the cache
+    static String compileErrors(CompilationCache cache, String source) throws IOException {
+    	try {
+    		cache.compile(source, true);
+    		return "compiled";
+    	} catch (CompilationException e) {
+    		return e.errors+" errors";
+    	}
+    }
+
+    // the program runs the same with and without the optimization passes (Compiler.passes)
+    static void samePasses(String name, String source) throws Exception {
+    	samePasses(name+", optimized", source, Compiler.passes());
+    }
+
+    // the same with the given passes, in order
+    static void samePasses(String name, String source, List<? extends BaseASTVisitor<Node,VoidException>> passes) throws Exception {
+    	String expected = run(compile(source, List.of()), null, ExecuteVM.Engine.SWITCH);
+    	check(name, expected, run(compile(source, passes), null, ExecuteVM.Engine.SWITCH));
+    }
+
+    static boolean samePasses(String source) throws Exception {
+    	return run(compile(source, List.of()), null, ExecuteVM.Engine.SWITCH).equals(run(compile(source, Compiler.passes()), null, ExecuteVM.Engine.SWITCH));
+    }
+
+    static Program compile(String source, List<? extends BaseASTVisitor<Node,VoidException>> passes) throws Exception {
+    	return new Program(Compiler.generate(CharStreams.fromString(source), System.out, passes).link(true));
+    }
+
+    // the output of the program, or the exception stopping it (where it stops depends on the code)
+    static String run(Program program, Budget budget, ExecuteVM.Engine engine) {
+    	ByteArrayOutputStream out = new ByteArrayOutputStream();
+    	try (ExecuteVM vm = new ExecuteVM(program, budget, null)) {
+    		vm.setOutput(new PrintStream(out, true));
+    		vm.cpu(engine);
+    	} catch (RuntimeException e) {
+    		return out+e.getClass().getName()+(e instanceof BudgetException ? ": "+e.getMessage() : "");
+    	}
+    	return out.toString();
+    }
+
+    static void check(String name, String expected, String actual) {
+    	if (expected.equals(actual)) System.out.println("ok      "+name);
+    	else {
+    		failures++;
+    		System.out.println("FAILED  "+name+": expected "+expected.trim()+", got "+actual.trim());
+    	}
+    }
+}
@@ -5,6 +5,8 @@ import compiler.AST.*;
 import compiler.exc.*;
 import compiler.lib.*;
 
+import static compiler.lib.FOOLlib.*;
+
 import javax.xml.transform.stream.StreamSource;
 
 public class SymbolTableASTVisitor extends BaseASTVisitor<Void,VoidException> {
@@ -26,6 +28,13 @@ public class SymbolTableASTVisitor extends BaseASTVisitor<Void,VoidException> {
 		return entry;
 	}
 
+	// true se tra le dichiarazioni ci sono funzioni, che accedono al frame tramite il display
+	private static boolean hasFunctions(List<Node> declist) {
+		for (Node dec : declist)
+			if (dec instanceof FunNode) return true;
+		return false;
+	}
+
 	@Override
 	public Void visitNode(ProgLetInNode n) {
 		if (print) printNode(n);
@@ -52,9 +61,10 @@ public class SymbolTableASTVisitor extends BaseASTVisitor<Void,VoidException> {
 		List<TypeNode> parTypes = new ArrayList<>();
 		for (ParNode par : n.parlist) parTypes.add(par.type);
 		STentry entry = new STentry(nestingLevel, new ArrowTypeNode(parTypes,n.getType()),decOffset--);
+		n.entry = entry;
 		//inserimento di ID nella symtable
 		if (hm.put(n.id, entry) != null) {
-			System.out.println("Fun id " + n.id + " at line "+ n.getLine() +" already declared");
+			diagnostics().println("Fun id " + n.id + " at line "+ n.getLine() +" already declared");
 			stErrors++;
 		}
 		//creare una nuova hashmap per la symTable
@@ -62,12 +72,14 @@ public class SymbolTableASTVisitor extends BaseASTVisitor<Void,VoidException> {
 		Map<String, STentry> hmn = new HashMap<>();
 		symTable.add(hmn);
 		int prevNLDecOffset=decOffset; // stores counter for offset of declarations at previous nesting level
-		decOffset=-2;
+		n.nl = nestingLevel;
+		n.display = hasFunctions(n.declist);
+		decOffset = n.display ? -3 : -2; // a -2 il display salvato, se la funzione lo aggiorna
 
 		int parOffset=1;
 		for (ParNode par : n.parlist)
 			if (hmn.put(par.id, new STentry(nestingLevel,par.type,parOffset++)) != null) {
-				System.out.println("Par id " + par.id + " at line "+ n.getLine() +" already declared");
+				diagnostics().println("Par id " + par.id + " at line "+ n.getLine() +" already declared");
 				stErrors++;
 			}
 		for (Node dec : n.declist) visit(dec);
@@ -84,9 +96,10 @@ public class SymbolTableASTVisitor extends BaseASTVisitor<Void,VoidException> {
 		visit(n.exp);
 		Map<String, STentry> hm = symTable.get(nestingLevel);
 		STentry entry = new STentry(nestingLevel,n.getType(),decOffset--);
+		n.entry = entry;
 		//inserimento di ID nella symtable
 		if (hm.put(n.id, entry) != null) {
-			System.out.println("Var id " + n.id + " at line "+ n.getLine() +" already declared");
+			diagnostics().println("Var id " + n.id + " at line "+ n.getLine() +" already declared");
 			stErrors++;
 		}
 		return null;
@@ -173,7 +186,7 @@ public class SymbolTableASTVisitor extends BaseASTVisitor<Void,VoidException> {
 
 	@Override
 	public Void visitNode(AndNode n){
-		printNode(n);
+		if (print) printNode(n);
 		visit(n.left);
 		visit(n.right);
 		return null;
@@ -181,7 +194,7 @@ public class SymbolTableASTVisitor extends BaseASTVisitor<Void,VoidException> {
 
 	@Override
 	public Void visitNode(OrNode n){
-		printNode(n);
+		if (print) printNode(n);
 		visit(n.left);
 		visit(n.right);
 		return null;
@@ -192,7 +205,7 @@ public class SymbolTableASTVisitor extends BaseASTVisitor<Void,VoidException> {
 		if (print) printNode(n);
 		STentry entry = stLookup(n.id);
 		if (entry == null) {
-			System.out.println("Fun id " + n.id + " at line "+ n.getLine() + " not declared");
+			diagnostics().println("Fun id " + n.id + " at line "+ n.getLine() + " not declared");
 			stErrors++;
 		} else {
 			n.entry = entry;
@@ -207,7 +220,7 @@ public class SymbolTableASTVisitor extends BaseASTVisitor<Void,VoidException> {
 		if (print) printNode(n);
 		STentry entry = stLookup(n.id);
 		if (entry == null) {
-			System.out.println("Var or Par id " + n.id + " at line "+ n.getLine() + " not declared");
+			diagnostics().println("Var or Par id " + n.id + " at line "+ n.getLine() + " not declared");
 			stErrors++;
 		} else {
 			n.entry = entry;
@@ -239,11 +252,12 @@ public class SymbolTableASTVisitor extends BaseASTVisitor<Void,VoidException> {
 
 		final int globalNestingLevel = 0;
 		STentry entry = new STentry(globalNestingLevel, ctn, decOffset--);
+		n.entry = entry;
 
 		Map<String, STentry> hm = symTable.get(globalNestingLevel);
 
 		if(hm.put(n.id, entry) != null){
-			System.out.println("Class id " + n.id + " at line "+ n.getLine() +" already declared");
+			diagnostics().println("Class id " + n.id + " at line "+ n.getLine() +" already declared");
 			stErrors++;
 		}
 
@@ -262,7 +276,7 @@ public class SymbolTableASTVisitor extends BaseASTVisitor<Void,VoidException> {
 				uniqFields.add(field);
 			}
 			else{
-				System.out.println("Par id " + field.id + ":" + field.type.toString() + " at line "+ n.getLine() +" already declared");
+				diagnostics().println("Par id " + field.id + ":" + field.type.toString() + " at line "+ n.getLine() +" already declared");
 				stErrors++;
 			}
 		}
@@ -285,7 +299,7 @@ public class SymbolTableASTVisitor extends BaseASTVisitor<Void,VoidException> {
 				uniqMethods.add(method);
 			}
 			else{
-				System.out.println("Method id " + method.id + " at line "+ n.getLine() +" already declared");
+				diagnostics().println("Method id " + method.id + " at line "+ n.getLine() +" already declared");
 				stErrors++;
 			}
 		}
@@ -321,6 +335,7 @@ public class SymbolTableASTVisitor extends BaseASTVisitor<Void,VoidException> {
 
 		var entry = new STentry(nestingLevel, new ArrowTypeNode(parTypes, n.type), decOffset++);
 		n.offset = entry.offset;
+		n.entry = entry;
 
 		//lo aggiungo alla virtual table
 		virtualTable.put(n.id, entry);
@@ -331,12 +346,14 @@ public class SymbolTableASTVisitor extends BaseASTVisitor<Void,VoidException> {
 		symTable.add(methodTable);
 
 		int prevOffset = decOffset;
-		decOffset = -2;
+		n.nl = nestingLevel;
+		n.display = hasFunctions(n.decList);
+		decOffset = n.display ? -3 : -2;
 		int parOffset = 1;
 
 		for(ParNode par : n.parList) {
 			if (methodTable.put(par.id, new STentry(nestingLevel,par.type, parOffset++)) != null) {
-				System.out.println("Par id " + par.id + " at line "+ n.getLine() +" already declared");
+				diagnostics().println("Par id " + par.id + " at line "+ n.getLine() +" already declared");
 				stErrors++;
 			}
 		}
@@ -355,7 +372,7 @@ public class SymbolTableASTVisitor extends BaseASTVisitor<Void,VoidException> {
 	public Void visitNode(NewNode n){
 		if(print) printNode(n);
 		if(!classTable.containsKey(n.classId)){
-			System.out.println("Class " + n.classId + " at line "+ n.getLine() +" not declared");
+			diagnostics().println("Class " + n.classId + " at line "+ n.getLine() +" not declared");
 			stErrors++;
 		}
 		int globalNestingLevel = 0;
@@ -371,12 +388,12 @@ public class SymbolTableASTVisitor extends BaseASTVisitor<Void,VoidException> {
 		STentry varEntry = stLookup(n.varName);
 
 		if(varEntry == null){ //controllo di usare una variabile presente nel nesting level corrente
-			System.out.println("Var or Par id " + n.varName + " at line "+ n.getLine() + " not declared");
+			diagnostics().println("Var or Par id " + n.varName + " at line "+ n.getLine() + " not declared");
 			stErrors++;
 		}
 		else { //controllo che la variabile sia un oggetto di una classe
 			if(! (varEntry.type instanceof RefTypeNode)){
-				System.out.println("Var or Par id " + n.varName + " at line "+ n.getLine() + " is not a class");
+				diagnostics().println("Var or Par id " + n.varName + " at line "+ n.getLine() + " is not a class");
 				stErrors++;
 			}
 			else{
@@ -384,7 +401,7 @@ public class SymbolTableASTVisitor extends BaseASTVisitor<Void,VoidException> {
 				var varClassTable = classTable.get(((RefTypeNode) varEntry.type).classID);
 
 				if(varClassTable == null){ //controllo che abbia una class table, dovrebbe sempre averla
-					System.out.println("Type of Var " + n.varName + " at line "+ n.getLine() + " has no class table");
+					diagnostics().println("Type of Var " + n.varName + " at line "+ n.getLine() + " has no class table");
 					stErrors++;
 				}
 				else{
@@ -393,11 +410,12 @@ public class SymbolTableASTVisitor extends BaseASTVisitor<Void,VoidException> {
 					STentry methodEntry = varClassTable.get(n.methodName);
 
 					if(methodEntry == null){ //controllo che la classe abbia quel metodo
-						System.out.println("Method id " + n.methodName + " at line " + n.getLine() + " not declared in class " + ((RefTypeNode) n.entry.type).classID);
+						diagnostics().println("Method id " + n.methodName + " at line " + n.getLine() + " not declared in class " + ((RefTypeNode) n.entry.type).classID);
 						stErrors++;
 					}
 					else{
 						n.methodEntry = methodEntry;
+						n.nestingLevel = nestingLevel;
 
 						n.args.forEach(this::visit);
 					}
@@ -1,6 +1,7 @@
 package compiler;
 
 import java.io.*;
+import java.nio.file.*;
 import org.antlr.v4.runtime.*;
 import org.antlr.v4.runtime.tree.*;
 import compiler.lib.*;
@@ -50,38 +51,64 @@ public class Test {
     	} catch (TypeException e) {
     		System.out.println("Type checking error in main program expression: "+e.text);
     	}
-    	System.out.println("You had "+FOOLlib.typeErrors+" type checking errors.\n");
+    	System.out.println("You had "+FOOLlib.session().typeErrors+" type checking errors.\n");
 
-    	int frontEndErrors = lexer.lexicalErrors+parser.getNumberOfSyntaxErrors()+symtableVisitor.stErrors+FOOLlib.typeErrors;
+    	int frontEndErrors = lexer.lexicalErrors+parser.getNumberOfSyntaxErrors()+symtableVisitor.stErrors+FOOLlib.session().typeErrors;
 		System.out.println("You had a total of "+frontEndErrors+" front-end errors.\n");
 
     	if ( frontEndErrors > 0) System.exit(1);
 
+    	System.out.println("Inlining calls.");
+    	InliningASTVisitor inliner = new InliningASTVisitor();
+    	ast = inliner.visit(ast);
+    	System.out.println("Inlined "+inliner.inlined+" calls (body size up to "+inliner.maxSize+" nodes, depth up to "+inliner.maxDepth+").\n");
+
+    	System.out.println("Folding constants.");
+    	ConstantFoldingASTVisitor folder = new ConstantFoldingASTVisitor();
+    	ast = folder.visit(ast);
+    	System.out.println("Folded "+folder.folded+" nodes.\n");
+
+    	System.out.println("Eliminating dead code.");
+    	DeadCodeEliminationASTVisitor eliminator = new DeadCodeEliminationASTVisitor();
+    	ast = eliminator.visit(ast);
+    	System.out.println("Eliminated "+eliminator.functions+" functions, "+eliminator.methods+" methods, "+
+    		eliminator.classes+" classes and "+eliminator.variables+" variables.\n");
+
+    	System.out.println("Devirtualizing method calls.");
+    	DevirtualizationASTVisitor devirtualizer = new DevirtualizationASTVisitor();
+    	ast = devirtualizer.visit(ast);
+    	System.out.println("Devirtualized "+devirtualizer.devirtualized+" calls, "+devirtualizer.virtual+" virtual.\n");
+
     	System.out.println("Generating code.");
-    	String code = new CodeGenerationASTVisitor(true).visit(ast);
+    	Code code = new CodeGenerationASTVisitor(true).visit(ast);
+    	// the assembly text is only a dump for debugging, code is assembled in memory
     	BufferedWriter out = new BufferedWriter(new FileWriter(fileName+".asm"));
-    	out.write(code);
+    	out.write(code.toString());
     	out.close();
 
     	System.out.println("");
 
     	System.out.println("Assembling generated code.");
-    	CharStream charsASM = CharStreams.fromFileName(fileName+".asm");
-    	SVMLexer lexerASM = new SVMLexer(charsASM);
-    	CommonTokenStream tokensASM = new CommonTokenStream(lexerASM);
-    	SVMParser parserASM = new SVMParser(tokensASM);
-
-    	parserASM.assembly();
-
-    	// needed only for debug
-    	System.out.println("You had: "+lexerASM.lexicalErrors+" lexical errors and "+parserASM.getNumberOfSyntaxErrors()+" syntax errors.\n");
-    	if (lexerASM.lexicalErrors+parserASM.getNumberOfSyntaxErrors()>0) System.exit(1);
+    	Assembler assembler = new Assembler();
+    	code.assemble(assembler);
+    	int[] program = assembler.link();
+    	System.out.println("Assembled "+assembler.sourceInstructions+" instructions into "+assembler.codeInstructions+
+    		" (superinstruction fusion "+(assembler.fusion?"on":"off")+").\n");
+
+    	System.out.println("Writing object file.");
+    	assembler.writeObject(fileName+".svm");
+    	System.out.println("");
 
     	System.out.println("Running generated code via Stack Virtual Machine.");
 
-		ExecuteVM vm = new ExecuteVM(parserASM.code);
-		//ExecuteVM vm = new ExecuteVM(parserASM.code,parserASM.sourceMap,Files.readAllLines(Paths.get(fileName+".asm")));
+		ExecuteVM vm = new ExecuteVM(program);
+		// the source map of the assembler gives the FOOL line of every instruction
+		SamplingProfiler sampler = new SamplingProfiler(vm, assembler.getSourceMap(), assembler.getLabels());
+		sampler.start();
     	vm.cpu();
+    	sampler.stop();
+    	System.out.println("\n"+vm.getGC());
+    	System.out.println("\n"+sampler.report(Files.readAllLines(Paths.get(fileName))));
     }
 }
 
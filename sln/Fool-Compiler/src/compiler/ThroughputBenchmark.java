@@ -0,0 +1,68 @@
+package compiler;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.antlr.v4.runtime.*;
+import svm.*;
+
+/*
+ * Runs a batch of executions of one compiled program on a growing number of
+ * threads and reports the runs per second, with the VM memories taken from an
+ * ArenaPool or allocated by every run.
+ * Usage: ThroughputBenchmark [file.fool [runs [engine]]]
+ * Threads double from 1 up to the number of available processors (at least 2).
+ * The program is compiled and loaded once; every run has its own ExecuteVM, whose
+ * output is discarded.
+ */
+public class ThroughputBenchmark {
+
+    static final int ROUNDS = 5; // per configuration, the first one only warms up
+
+    public static void main(String[] args) throws Exception {
+
+    	String fileName = args.length > 0 ? args[0] : "quicksort.fool";
+    	int runs = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+    	ExecuteVM.Engine engine = args.length > 2 ? ExecuteVM.Engine.valueOf(args[2]) : ExecuteVM.Engine.SWITCH;
+
+    	Program program = new Program(Compiler.compile(CharStreams.fromFileName(fileName)));
+    	int cores = Runtime.getRuntime().availableProcessors();
+    	System.out.println(fileName+": "+runs+" runs per round on the "+engine+" engine, "+cores+" available processors");
+    	System.out.printf("%8s %8s %14s %10s%n", "threads", "pool", "runs/s", "speedup");
+
+    	double reference = 0;
+    	for (int threads = 1; threads <= Math.max(2, cores); threads *= 2)
+    		for (boolean pooled : new boolean[] {false, true}) {
+    			ArenaPool pool = pooled ? new ArenaPool(threads) : null;
+    			ExecutorService executor = Executors.newFixedThreadPool(threads);
+    			double best = 0;
+    			for (int round = 0; round < ROUNDS; round++) {
+    				double rate = batch(executor, threads, runs, program, engine, pool);
+    				if (round > 0) best = Math.max(best, rate);
+    			}
+    			executor.shutdown();
+    			if (reference == 0) reference = best;
+    			System.out.printf("%8d %8s %14.0f %9.2fx%n", threads, pooled ? "yes" : "no", best, best/reference);
+    		}
+    }
+
+    // runs per second of a batch split among the threads
+    static double batch(ExecutorService executor, int threads, int runs, Program program, ExecuteVM.Engine engine, ArenaPool pool) throws Exception {
+    	PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+    	List<Callable<Void>> tasks = new ArrayList<>();
+    	for (int t = 0; t < threads; t++) {
+    		int share = runs/threads + (t < runs%threads ? 1 : 0);
+    		tasks.add(() -> {
+    			for (int r = 0; r < share; r++)
+    				try (ExecuteVM vm = new ExecuteVM(program, null, pool)) {
+    					vm.setOutput(discard);
+    					vm.cpu(engine);
+    				}
+    			return null;
+    		});
+    	}
+    	long start = System.nanoTime();
+    	for (Future<Void> f : executor.invokeAll(tasks)) f.get();
+    	return runs/((System.nanoTime() - start)/1e9);
+    }
+}
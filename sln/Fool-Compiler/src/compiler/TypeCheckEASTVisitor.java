@@ -35,7 +35,7 @@ public class TypeCheckEASTVisitor extends BaseEASTVisitor<TypeNode,TypeException
 				visit(dec);
 			} catch (IncomplException e) { 
 			} catch (TypeException e) {
-				System.out.println("Type checking error in a declaration: " + e.text);
+				diagnostics().println("Type checking error in a declaration: " + e.text);
 			}
 		return visit(n.exp);
 	}
@@ -54,7 +54,7 @@ public class TypeCheckEASTVisitor extends BaseEASTVisitor<TypeNode,TypeException
 				visit(dec);
 			} catch (IncomplException e) { 
 			} catch (TypeException e) {
-				System.out.println("Type checking error in a declaration: " + e.text);
+				diagnostics().println("Type checking error in a declaration: " + e.text);
 			}
 		if ( !isSubtype(visit(n.exp),ckvisit(n.getType())) ) //check
 			throw new TypeException("Wrong return type for function " + n.id,n.getLine());
@@ -267,7 +267,7 @@ public class TypeCheckEASTVisitor extends BaseEASTVisitor<TypeNode,TypeException
 				visit(dec);
 			} catch (IncomplException e) {
 			} catch (TypeException e) {
-				System.out.println("Type checking error in a declaration: " + e.text);
+				diagnostics().println("Type checking error in a declaration: " + e.text);
 			}
 		}
 		if(!isSubtype(visit(n.exp), ckvisit(n.getType())))
@@ -283,7 +283,7 @@ public class TypeCheckEASTVisitor extends BaseEASTVisitor<TypeNode,TypeException
 				visit(method);
 			} catch (IncomplException e) {
 			} catch (TypeException e) {
-				System.out.println("Class method error in a declaration: " + e.text);
+				diagnostics().println("Class method error in a declaration: " + e.text);
 			}
 		}
 
@@ -292,7 +292,7 @@ public class TypeCheckEASTVisitor extends BaseEASTVisitor<TypeNode,TypeException
 				visit(field);
 			} catch (IncomplException e) {
 			} catch (TypeException e) {
-				System.out.println("Class field error in a declaration: " + e.text);
+				diagnostics().println("Class field error in a declaration: " + e.text);
 			}
 		}
 		return null;
@@ -350,7 +350,7 @@ public class TypeCheckEASTVisitor extends BaseEASTVisitor<TypeNode,TypeException
 			// class X(x:int){}; => decArg: int
 			// var z: X = new X(true); => foundArg: bool
 			// type( bool <= int )
-			if( !(isSubtype(visit(foundArg), visit(decArg))))
+			if( !(isSubtype(visit(decArg), ckvisit(foundArg))))
 				throw new TypeException("Wrong type for "+decArg+"-th parameter in the instantiation of "+n.classId,n.getLine());
 		}
 		return new RefTypeNode(n.classId);
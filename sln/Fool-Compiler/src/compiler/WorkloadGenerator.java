@@ -0,0 +1,196 @@
+package compiler;
+
+import java.nio.file.*;
+import java.util.*;
+
+/*
+ * Generates valid, type-correct FOOL programs of tunable size and shape, the
+ * same for the same parameters and seed.
+ * Usage: WorkloadGenerator [name=value...] [-o file.fool]
+ * e.g. WorkloadGenerator seed=7 classes=20 methods=8 recursion=5000 -o big.fool
+ * (the program goes to standard output without -o); the same name=value list,
+ * comma separated, is accepted by generate(String), and by the JMH PhaseBenchmark
+ * (jmh module) separated by ';', as -p input=workload:classes=20;methods=8.
+ *
+ * The program, for the default parameters:
+ *   classes   C0..Ck, each with int and bool fields, a link to the next object of
+ *             the same class and methods m0..mj, whose bodies are random expressions
+ *             over the fields and their argument;
+ *             make<i>(n, x) builds a list of n objects of class Ci, walk<i>(l, x) calls
+ *             every method on every object of the list
+ *   functions g0..gf, g<i> with nested functions g<i>n1..g<i>n<d>, each one declared in
+ *             the one before and using the parameters of all the enclosing ones
+ *             (access links), g<i> also calling g<i-1>
+ *   loop(n)   the main program: recursion n deep, each step calling the last g and
+ *             allocating and walking alloc objects (spread over the classes)
+ * Random expressions are at most depth deep: one operand of a binary operator is
+ * as deep as allowed, the other one is shallower, so they grow linearly. Divisions
+ * are only by positive constants; sums can overflow, deterministically.
+ */
+public class WorkloadGenerator {
+
+    public long seed = 1;
+    public int classes = 2;      // number of classes
+    public int methods = 3;      // methods per class
+    public int fields = 2;       // int and bool fields per class (besides the link)
+    public int functions = 4;    // top-level functions
+    public int nesting = 2;      // depth of the functions nested in each top-level function
+    public int depth = 4;        // depth of the random expressions
+    public int recursion = 1000; // depth of the recursion of the main program
+    public int alloc = 8;        // objects allocated at each step of the recursion
+
+    static final int MODULUS = 1000003; // keeps the result of the main program small
+
+    private Random random;
+    private StringBuilder s;
+
+    public static void main(String[] args) throws Exception {
+    	WorkloadGenerator generator = new WorkloadGenerator();
+    	String output = null;
+    	for (int a = 0; a < args.length; a++)
+    		if (args[a].equals("-o")) output = args[++a];
+    		else generator.set(args[a]);
+    	String program = generator.generate();
+    	if (output == null) System.out.print(program);
+    	else Files.writeString(Paths.get(output), program);
+    }
+
+    // the program for the comma-separated name=value parameters
+    public static String generate(String parameters) {
+    	WorkloadGenerator generator = new WorkloadGenerator();
+    	for (String p : parameters.split(","))
+    		if (!p.isBlank()) generator.set(p.trim());
+    	return generator.generate();
+    }
+
+    // sets the parameter name=value
+    public void set(String parameter) {
+    	int eq = parameter.indexOf('=');
+    	if (eq < 0) throw new IllegalArgumentException("Expected name=value: "+parameter);
+    	String name = parameter.substring(0, eq);
+    	long value = Long.parseLong(parameter.substring(eq+1));
+    	if (value < 0) throw new IllegalArgumentException("Negative parameter: "+parameter);
+    	switch (name) {
+    		case "seed": seed = value; break;
+    		case "classes": classes = (int) value; break;
+    		case "methods": methods = (int) value; break;
+    		case "fields": fields = (int) value; break;
+    		case "functions": functions = (int) value; break;
+    		case "nesting": nesting = (int) value; break;
+    		case "depth": depth = (int) value; break;
+    		case "recursion": recursion = (int) value; break;
+    		case "alloc": alloc = (int) value; break;
+    		default: throw new IllegalArgumentException("Unknown parameter: "+name);
+    	}
+    }
+
+    @Override
+    public String toString() {
+    	return "seed="+seed+",classes="+classes+",methods="+methods+",fields="+fields+",functions="+functions+
+    		",nesting="+nesting+",depth="+depth+",recursion="+recursion+",alloc="+alloc;
+    }
+
+    public String generate() {
+    	random = new Random(seed);
+    	s = new StringBuilder("/* WorkloadGenerator "+this+" */\nlet\n");
+    	for (int c = 0; c < classes; c++) classDec(c);
+    	s.append("  fun mod:int (a:int, m:int) a - (a / m) * m;\n");
+    	for (int c = 0; c < classes; c++) listFunctions(c);
+    	for (int f = 0; f < functions; f++) function(f);
+
+    	s.append("  fun step:int (n:int)\n    ");
+    	List<String> terms = new ArrayList<>();
+    	if (functions > 0) terms.add("g"+(functions-1)+"(n)");
+    	for (int c = 0; c < classes; c++) {
+    		int objects = alloc/classes + (c < alloc%classes ? 1 : 0);
+    		if (objects > 0) terms.add("walk"+c+"(make"+c+"("+objects+", n), n)");
+    	}
+    	s.append(terms.isEmpty() ? "n" : String.join(" + ", terms)).append(";\n");
+    	s.append("  fun loop:int (n:int, acc:int)\n")
+    	 .append("    if (n <= 0) then {acc} else {loop(n - 1, mod(acc + step(n), "+MODULUS+"))};\n");
+    	s.append("in\n  print(loop("+recursion+", 0));\n");
+    	return s.toString();
+    }
+
+    // fields a<i> are int and b<i> bool, alternately
+    private static String field(int i) {
+    	return (i%2 == 0 ? "a" : "b")+i;
+    }
+
+    private void classDec(int c) {
+    	s.append("  class C").append(c).append(" (");
+    	for (int i = 0; i < fields; i++)
+    		s.append(field(i)).append(i%2 == 0 ? ":int, " : ":bool, ");
+    	s.append("next:C").append(c).append(") {\n");
+    	List<String> ints = new ArrayList<>(List.of("x")), bools = new ArrayList<>();
+    	for (int i = 0; i < fields; i++) (i%2 == 0 ? ints : bools).add(field(i));
+    	for (int m = 0; m < methods; m++)
+    		s.append("    fun m").append(m).append(":int (x:int) ").append(intExp(depth, ints, bools)).append(";\n");
+    	s.append("    fun tail:C").append(c).append(" () next;\n");
+    	s.append("  }\n");
+    }
+
+    private void listFunctions(int c) {
+    	s.append("  fun make").append(c).append(":C").append(c).append(" (n:int, x:int)\n")
+    	 .append("    if (n <= 0) then {null} else {new C").append(c).append("(");
+    	for (int i = 0; i < fields; i++)
+    		s.append(i%2 == 0 ? "x + n * "+(i+1) : "n <= "+random.nextInt(10)).append(", ");
+    	s.append("make").append(c).append("(n - 1, x))};\n");
+    	s.append("  fun walk").append(c).append(":int (l:C").append(c).append(", x:int)\n")
+    	 .append("    if (l == null) then {0} else {");
+    	for (int m = 0; m < methods; m++) s.append("l.m").append(m).append("(x) + ");
+    	s.append("walk").append(c).append("(l.tail(), x + 1)};\n");
+    }
+
+    private void function(int f) {
+    	List<String> ints = new ArrayList<>(List.of("x")), bools = new ArrayList<>();
+    	s.append("  fun g").append(f).append(":int (x:int)\n");
+    	String indent = "    ";
+    	for (int d = 1; d <= nesting; d++) {
+    		String param = "y"+d;
+    		s.append(indent).append("let fun g").append(f).append('n').append(d).append(":int (").append(param).append(":int)\n");
+    		ints.add(param);
+    		indent += "  ";
+    	}
+    	s.append(indent).append(intExp(depth, ints, bools)).append(nesting > 0 ? ";\n" : "\n");
+    	for (int d = nesting; d >= 1; d--) {
+    		indent = indent.substring(2);
+    		ints.remove(ints.size()-1);
+    		String call = "g"+f+"n"+d+"("+ints.get(ints.size()-1)+" + "+d+")";
+    		s.append(indent).append("in ").append(d > 1 ? call+";" : call);
+    		s.append(d == 1 && f > 0 ? " + g"+(f-1)+"(x / 2)" : "").append('\n');
+    	}
+    	if (nesting == 0 && f > 0) s.append("    + g").append(f-1).append("(x / 2)\n");
+    	s.append("  ;\n");
+    }
+
+    // a random int expression of at most the given depth over the given variables
+    private String intExp(int d, List<String> ints, List<String> bools) {
+    	if (d <= 0 || random.nextInt(8) == 0)
+    		return random.nextInt(3) == 0 ? Integer.toString(random.nextInt(100)) : ints.get(random.nextInt(ints.size()));
+    	switch (random.nextInt(6)) {
+    		case 0: return "("+intExp(d-1, ints, bools)+" + "+intExp(random.nextInt(d), ints, bools)+")";
+    		case 1: return "("+intExp(random.nextInt(d), ints, bools)+" - "+intExp(d-1, ints, bools)+")";
+    		case 2: return "("+intExp(d-1, ints, bools)+" * "+intExp(random.nextInt(d), ints, bools)+")";
+    		case 3: return "("+intExp(d-1, ints, bools)+" / "+(1+random.nextInt(9))+")";
+    		default:
+    			return "if "+boolExp(random.nextInt(d), ints, bools)+
+    				" then {"+intExp(d-1, ints, bools)+"} else {"+intExp(random.nextInt(d), ints, bools)+"}";
+    	}
+    }
+
+    // a random bool expression, parenthesized
+    private String boolExp(int d, List<String> ints, List<String> bools) {
+    	if (d <= 0 || random.nextInt(8) == 0) {
+    		if (!bools.isEmpty() && random.nextBoolean()) return "("+bools.get(random.nextInt(bools.size()))+")";
+    		return "("+intExp(0, ints, bools)+(random.nextBoolean() ? " <= " : " >= ")+intExp(0, ints, bools)+")";
+    	}
+    	switch (random.nextInt(5)) {
+    		case 0: return "("+boolExp(d-1, ints, bools)+" && "+boolExp(random.nextInt(d), ints, bools)+")";
+    		case 1: return "("+boolExp(d-1, ints, bools)+" || "+boolExp(random.nextInt(d), ints, bools)+")";
+    		case 2: return "(!"+boolExp(d-1, ints, bools)+")";
+    		case 3: return "("+intExp(d-1, ints, bools)+" == "+intExp(random.nextInt(d), ints, bools)+")";
+    		default: return "("+intExp(d-1, ints, bools)+(random.nextBoolean() ? " <= " : " >= ")+intExp(random.nextInt(d), ints, bools)+")";
+    	}
+    }
+}
@@ -0,0 +1,20 @@
+package compiler.exc;
+
+public class CompilationException extends Exception {
+
+	private static final long serialVersionUID = 1L;
+
+	public int errors;
+	public String diagnostics = ""; // errors reported by the front end, when captured
+
+	public CompilationException(int errors) {
+		super("You had a total of "+errors+" front-end errors.");
+		this.errors = errors;
+	}
+
+	public CompilationException(int errors, String diagnostics) {
+		this(errors);
+		this.diagnostics = diagnostics;
+	}
+
+}
@@ -9,7 +9,7 @@ public class TypeException extends Exception {
 	public String text;
 
 	public TypeException(String t, int line) {
-		FOOLlib.typeErrors++;
+		FOOLlib.session().typeErrors++;
 		text = t + " at line "+ line;
 	}
 
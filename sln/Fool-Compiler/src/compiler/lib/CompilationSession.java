@@ -0,0 +1,45 @@
+package compiler.lib;
+
+import java.io.PrintStream;
+import svm.Code;
+
+/*
+ * State of a single compilation: type errors, label counters, code of the
+ * functions and the stream the front end reports errors to.
+ * Each compilation gets its own session, made current on its thread by
+ * FOOLlib.start, so that any number of compilations can run concurrently
+ * on different threads.
+ */
+public class CompilationSession {
+
+	public int typeErrors = 0;
+	public final PrintStream diagnostics;
+
+	private int labCount = 0;
+	private int funlabCount = 0;
+	private Code funCode = null;
+
+	public CompilationSession() {
+		this(System.out);
+	}
+
+	public CompilationSession(PrintStream diagnostics) {
+		this.diagnostics = diagnostics;
+	}
+
+	public String freshLabel() {
+		return "label"+(labCount++);
+	}
+
+	public String freshFunLabel() {
+		return "function"+(funlabCount++);
+	}
+
+	public void putCode(Code c) {
+		funCode = Code.join(funCode, c);
+	}
+
+	public Code getCode() {
+		return funCode;
+	}
+}
@@ -1,7 +1,9 @@
 package compiler.lib;
 
 import compiler.AST.*;
+import svm.Code;
 
+import java.io.PrintStream;
 import java.sql.Ref;
 
 public class FOOLlib {
@@ -18,37 +20,40 @@ public class FOOLlib {
 		return Character.toLowerCase(s.charAt(0))+s.substring(1,s.length());
 	}
 
-	public static int typeErrors = 0;
+	// sessione della compilazione in corso sul thread, vedi CompilationSession
+	private static final ThreadLocal<CompilationSession> session = ThreadLocal.withInitial(CompilationSession::new);
 
+	public static CompilationSession session() {
+		return session.get();
+	}
 
-	// crea un'unica stringa a partire da un insieme di stringhe concatenadole e 
-	// introducendo, all'interno, dei newline "\n" come separatore tra le stringhe
-	public static String nlJoin(String... lines) { //argomenti null ignorati 
-		String code = null;
-		for (int i = 0; i<lines.length; i++)
-			if (lines[i]!=null) code = (code==null?"":code+"\n")+lines[i];
-		return code;
+	// rende corrente sul thread la sessione di una nuova compilazione
+	public static void start(CompilationSession s) {
+		session.set(s);
 	}
 
-	private static int labCount = 0;
+	// azzera lo stato prima di compilare un nuovo programma, riportando gli errori su System.out
+	public static void reset() {
+		start(new CompilationSession());
+	}
 
-	public static String freshLabel() {
-		return "label"+(labCount++);
+	public static PrintStream diagnostics() {
+		return session().diagnostics;
 	}
 
-	private static int funlabCount = 0;
+	public static String freshLabel() {
+		return session().freshLabel();
+	}
 
 	public static String freshFunLabel() {
-		return "function"+(funlabCount++);
+		return session().freshFunLabel();
 	}
 
-	private static String funCode = null;
-
-	public static void putCode(String c) {
-		funCode = nlJoin(funCode, "", c); //linea vuota di separazione prima di codice funzione
+	public static void putCode(Code c) {
+		session().putCode(c);
 	}
 
-	public static String getCode() {
-		return funCode;
+	public static Code getCode() {
+		return session().getCode();
 	}
 }
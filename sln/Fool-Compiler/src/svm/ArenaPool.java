@@ -0,0 +1,49 @@
+package svm;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.*;
+
+/*
+ * Pool of VM memories (stack and heap), reused across runs instead of allocating
+ * and growing a new one every time: an ExecuteVM built with a pool takes its memory
+ * from it and gives it back, cleared, on close(). A memory keeps the size it grew
+ * to, so later runs start with the room earlier runs needed.
+ * Thread safe: VMs on different threads share one pool.
+ */
+public class ArenaPool {
+
+    private final int capacity; // memories kept at most
+    private final ConcurrentLinkedQueue<int[]> free = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicLong reused = new AtomicLong(), allocated = new AtomicLong();
+
+    public ArenaPool(int capacity) {
+      this.capacity = capacity;
+    }
+
+    // a memory of at least the given number of words
+    int[] acquire(int words) {
+      int[] memory;
+      while ((memory = free.poll()) != null) {
+        size.decrementAndGet();
+        if (memory.length >= words) {
+          reused.incrementAndGet();
+          return memory;
+        }
+      }
+      allocated.incrementAndGet();
+      return new int[words];
+    }
+
+    void release(int[] memory) {
+      Arrays.fill(memory, 0); // a run never sees what an earlier one left
+      if (size.incrementAndGet() <= capacity) free.offer(memory);
+      else size.decrementAndGet();
+    }
+
+    @Override
+    public String toString() {
+      return "Arena pool: "+allocated.get()+" allocated, "+reused.get()+" reused, "+size.get()+" free";
+    }
+}
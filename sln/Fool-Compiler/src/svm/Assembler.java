@@ -0,0 +1,129 @@
+package svm;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.*;
+
+/*
+ * Assembles SVM instructions into the code run by ExecuteVM and links their labels.
+ * Instructions come either from the assembly text (SVMParser) or directly from
+ * the code generator (Code.assemble).
+ *
+ * Superinstruction fusion: the idioms of the code generator
+ *   lfp; push k; add; lw   -> lloc k  (load local/argument)
+ *   stm; ltm; ltm          -> dup     (duplicate top of stack, also stored in tm)
+ *   lhp; push 1; add; shp  -> ihp     (increment hp)
+ * are assembled into single instructions; set fusion to false before
+ * the first instruction to turn it off.
+ */
+public class Assembler {
+
+    public boolean fusion = true;
+    public int sourceInstructions = 0; // instructions given to the assembler
+    public int codeInstructions = 0;   // instructions in code, after fusion
+
+    private int[] code = new int[ExecuteVM.CODESIZE];
+    private int[] sourceMap = new int[ExecuteVM.CODESIZE]; // code address -> source line of the instruction starting there, 0 elsewhere
+    private int i = 0;
+    private Map<String,Integer> labelDef = new HashMap<>();
+    private Map<Integer,String> labelRef = new HashMap<>();
+
+    private int[] window = new int[4]; // start of the last instructions after the last label
+    private int w = 0;
+
+    public void label(String label) {
+      labelDef.put(label, i);
+      w = 0; // no fusion across a label
+    }
+
+    public void instruction(int opcode, int line) {
+      ensureCode();
+      int start = i;
+      code[i++] = opcode;
+      emitted(start, line);
+    }
+
+    public void instruction(int opcode, int arg, int line) {
+      ensureCode();
+      int start = i;
+      code[i++] = opcode;
+      code[i++] = arg;
+      emitted(start, line);
+    }
+
+    public void instruction(int opcode, String label, int line) {
+      ensureCode();
+      int start = i;
+      code[i++] = opcode;
+      labelRef.put(i++, label);
+      emitted(start, line);
+    }
+
+    /*
+     * Resolves the label references and returns the code.
+     */
+    public int[] link() {
+      for (Map.Entry<Integer,String> ref : labelRef.entrySet()) {
+        Integer address = labelDef.get(ref.getValue());
+        if (address == null) throw new IllegalArgumentException("Undefined label "+ref.getValue());
+        code[ref.getKey()] = address;
+      }
+      code = Arrays.copyOf(code, i);
+      sourceMap = Arrays.copyOf(sourceMap, i);
+      return code;
+    }
+
+    public int[] getSourceMap() {
+      return sourceMap;
+    }
+
+    public Map<String,Integer> getLabels() {
+      return Collections.unmodifiableMap(labelDef);
+    }
+
+    // writes the linked program as an object file, see ObjectFile
+    public void writeObject(String fileName) throws IOException {
+      ObjectFile.write(Paths.get(fileName), code, labelDef, sourceMap);
+    }
+
+    // makes room for the next instruction (opcode and argument), growing the code buffer
+    private void ensureCode() {
+      if (i+2 > code.length) {
+        code = Arrays.copyOf(code, 2*code.length);
+        sourceMap = Arrays.copyOf(sourceMap, code.length);
+      }
+    }
+
+    // called after each instruction starting at the given address
+    private void emitted(int start, int line) {
+      sourceMap[start] = line;
+      sourceInstructions++;
+      codeInstructions++;
+      if (w == window.length) { System.arraycopy(window, 1, window, 0, w-1); w--; }
+      window[w++] = start;
+      if (!fusion) return;
+      if (matches(SVMParser.LOADFP, SVMParser.PUSH, SVMParser.ADD, SVMParser.LOADW) && !labelRef.containsKey(window[w-3]+1))
+        fuse(4, SVMParser.LOADLOCAL, code[window[w-3]+1]);
+      else if (matches(SVMParser.STORETM, SVMParser.LOADTM, SVMParser.LOADTM))
+        fuse(3, SVMParser.DUP);
+      else if (matches(SVMParser.LOADHP, SVMParser.PUSH, SVMParser.ADD, SVMParser.STOREHP) && !labelRef.containsKey(window[w-3]+1) && code[window[w-3]+1] == 1)
+        fuse(4, SVMParser.HPINC);
+    }
+
+    // true if the last instructions since the last label are the given ones
+    private boolean matches(int... opcodes) {
+      if (w < opcodes.length) return false;
+      for (int j = 0; j < opcodes.length; j++)
+        if (code[window[w-opcodes.length+j]] != opcodes[j]) return false;
+      return true;
+    }
+
+    // replaces the last n instructions with the given one
+    private void fuse(int n, int... instruction) {
+      Arrays.fill(sourceMap, window[w-n]+1, i, 0);
+      i = window[w-n];
+      for (int word : instruction) code[i++] = word;
+      w -= n-1;
+      codeInstructions -= n-1;
+    }
+}
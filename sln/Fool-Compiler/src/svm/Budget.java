@@ -0,0 +1,22 @@
+package svm;
+
+/*
+ * Execution budget of an ExecuteVM: a run exceeding any of the limits stops with
+ * a BudgetException telling which limit was exceeded and where.
+ * Stack and heap are bounded by every engine, at no cost (they are checked when the
+ * regions grow). The instruction and time limits are enforced by an interpreter loop
+ * of their own (the SWITCH engine checking at every taken branch and call), so runs
+ * without them pay nothing.
+ */
+public class Budget {
+
+    public long instructions = Long.MAX_VALUE;  // maximum instructions executed
+    public int stack = ExecuteVM.STACKSIZE;     // maximum stack size (words)
+    public int heap = ExecuteVM.HEAPSIZE;       // maximum heap size (words)
+    public long timeoutMillis = 0;              // maximum wall time of a cpu() call, 0 for no limit
+
+    // true if the instruction or time limit needs the budgeted interpreter loop
+    boolean limitsExecution() {
+      return instructions < Long.MAX_VALUE || timeoutMillis > 0;
+    }
+}
@@ -0,0 +1,22 @@
+package svm;
+
+/*
+ * Thrown when a run exceeds its Budget (or the default stack and heap sizes).
+ * It is a MemoryException, as stack and heap overflows always were.
+ */
+public class BudgetException extends MemoryException {
+
+	private static final long serialVersionUID = 1L;
+
+	public enum Limit { INSTRUCTIONS, STACK, HEAP, TIME }
+
+	public final Limit limit;
+	public int ip = -1;          // address of the instruction running when the run stopped
+	public long executed = -1;   // instructions executed, -1 if not counted (no instruction or time limit)
+
+	public BudgetException(Limit limit, String message) {
+		super(message);
+		this.limit = limit;
+	}
+
+}
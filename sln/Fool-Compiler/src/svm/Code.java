@@ -0,0 +1,174 @@
+package svm;
+
+import java.util.*;
+
+/*
+ * Sequence of SVM instructions with symbolic labels, produced by the code generator
+ * and assembled in memory by Assembler: no assembly text is written or parsed.
+ * toString() gives the equivalent assembly text (one instruction or label per line)
+ * for debugging, which SVMParser assembles into the same code.
+ *
+ * Fragments are immutable and form a rope: join() only links the given fragments,
+ * in time proportional to their number and not to their length, so nesting joins
+ * in the code generator costs linear time overall. The instructions are
+ * collected once, the first time the fragment is traversed.
+ *
+ * at() gives a fragment a source line: its instructions that have no line from an
+ * inner fragment get that line, which the assembler puts in its source map.
+ */
+public class Code {
+
+    private static final int LABEL = 0; // label definition, not an opcode
+
+    // one instruction or label definition
+    private static class Item {
+      final int opcode;
+      final int arg;
+      final String label; // label operand (or the label defined), null if none
+
+      Item(int opcode, int arg, String label) {
+        this.opcode = opcode;
+        this.arg = arg;
+        this.label = label;
+      }
+    }
+
+    private final Item item;     // single instruction or label, null if the fragment is a join
+    private final Code[] parts;  // joined fragments, null if the fragment is a single item
+    private final int size;      // number of instructions and labels
+    private final int line;      // source line of the instructions with no line of their own, 0 if none
+    private List<Item> items;    // the instructions in order, collected on first use
+    private int[] lines;         // source line of each of them, 0 if unknown
+
+    private Code(Item item) {
+      this.item = item;
+      this.parts = null;
+      this.size = 1;
+      this.line = 0;
+    }
+
+    private Code(Code[] parts, int size, int line) {
+      this.item = null;
+      this.parts = parts;
+      this.size = size;
+      this.line = line;
+    }
+
+    // instruction without operands
+    public static Code ins(int opcode) {
+      return new Code(new Item(opcode, 0, null));
+    }
+
+    // instruction with an integer operand (push, lloc, ldisp, sdisp, rdisp)
+    public static Code ins(int opcode, int arg) {
+      return new Code(new Item(opcode, arg, null));
+    }
+
+    // instruction with a label operand (push, b, beq, bleq)
+    public static Code ins(int opcode, String label) {
+      return new Code(new Item(opcode, 0, label));
+    }
+
+    public static Code push(int value) {
+      return ins(SVMParser.PUSH, value);
+    }
+
+    public static Code push(String label) {
+      return ins(SVMParser.PUSH, label);
+    }
+
+    public static Code label(String label) {
+      return new Code(new Item(LABEL, 0, label));
+    }
+
+    // concatenates the fragments in order, null fragments are ignored; the fragments are not copied
+    public static Code join(Code... fragments) {
+      int n = 0, size = 0;
+      for (Code c : fragments)
+        if (c != null) { n++; size += c.size; }
+      Code[] parts = new Code[n];
+      n = 0;
+      for (Code c : fragments)
+        if (c != null) parts[n++] = c;
+      return n == 1 ? parts[0] : new Code(parts, size, 0);
+    }
+
+    // this fragment, its instructions with no source line taking the given one (if positive)
+    public Code at(int line) {
+      if (line <= 0 || this.line > 0) return this;
+      return new Code(new Code[] {this}, size, line);
+    }
+
+    public int size() {
+      return size;
+    }
+
+    // the instructions in order; joins can nest deeply (one per function in FOOLlib.putCode), hence no recursion
+    private List<Item> items() {
+      if (items == null) {
+        List<Item> list = new ArrayList<>(size);
+        int[] lines = new int[size];
+        Deque<Code> pending = new ArrayDeque<>();
+        Deque<Integer> pendingLines = new ArrayDeque<>(); // line given by the enclosing fragments
+        pending.push(this);
+        pendingLines.push(0);
+        while (!pending.isEmpty()) {
+          Code c = pending.pop();
+          int inherited = pendingLines.pop();
+          int line = c.line > 0 ? c.line : inherited;
+          if (c.items != null)
+            for (int i = 0; i < c.items.size(); i++) {
+              lines[list.size()] = c.lines[i] > 0 ? c.lines[i] : line;
+              list.add(c.items.get(i));
+            }
+          else if (c.item != null) {
+            lines[list.size()] = line;
+            list.add(c.item);
+          } else
+            for (int p = c.parts.length-1; p >= 0; p--) {
+              pending.push(c.parts[p]);
+              pendingLines.push(line);
+            }
+        }
+        this.lines = lines;
+        items = list;
+      }
+      return items;
+    }
+
+    // feeds the instructions to the assembler, with their source lines
+    public void assemble(Assembler assembler) {
+      List<Item> items = items();
+      for (int i = 0; i < items.size(); i++) {
+        Item item = items.get(i);
+        int line = lines[i];
+        if (item.opcode == LABEL) assembler.label(item.label);
+        else if (item.label != null) assembler.instruction(item.opcode, item.label, line);
+        else if (ThreadedCode.length(item.opcode) == 2) assembler.instruction(item.opcode, item.arg, line);
+        else assembler.instruction(item.opcode, line);
+      }
+    }
+
+    // assembles the fragment on its own, returning the code ExecuteVM runs
+    public int[] link(boolean fusion) {
+      Assembler assembler = new Assembler();
+      assembler.fusion = fusion;
+      assemble(assembler);
+      return assembler.link();
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder s = new StringBuilder();
+      for (Item item : items()) {
+        if (item.opcode == LABEL) s.append(item.label).append(":");
+        else {
+          s.append(ThreadedCode.mnemonic(item.opcode));
+          if (item.label != null) s.append(" ").append(item.label);
+          else if (ThreadedCode.length(item.opcode) == 2) s.append(" ").append(item.arg);
+        }
+        s.append("\n");
+      }
+      return s.toString();
+    }
+}
@@ -1,25 +1,627 @@
 package svm;
-public class ExecuteVM {
+public class ExecuteVM implements AutoCloseable {
+
+    // SWITCH: fetch and dispatch on the code words; THREADED: run the program decoded by ThreadedCode;
+    // TIERED: as SWITCH, hot functions are compiled to JVM classes by JitCompiler
+    public enum Engine { SWITCH, THREADED, TIERED }
     
-    public static final int CODESIZE = 10000;
-    public static final int MEMSIZE = 10000;
+    public static final int CODESIZE = 10000; // initial capacity of the assembler code buffer
+    public static final int MEMSIZE = 1 << 24; // address of the stack bottom and of the heap start
+    public static final int STACKSIZE = 1 << 20; // default maximum stack size (words)
+    public static final int HEAPSIZE = 1 << 22;  // default maximum heap size (words)
+    private static final int INITIALSIZE = 1 << 12; // initial capacity of both regions (words)
+    public static final int JITTHRESHOLD = 1000; // entries before a function is compiled
+    static final int JITDEPTH = 1000;     // maximum nesting of compiled calls on the Java stack
+    static final int JITRETURN = -1;      // return address of the calls made by compiled code
+    static final int TIMECHECK = 1024;    // taken branches and calls between two checks of the time budget
     
-    private int[] code;
-    private int[] memory = new int[MEMSIZE];
+    // the stack grows down from MEMSIZE, the heap sits above it and grows up:
+    // heap addresses never collide with stack and code addresses, so the collector
+    // can scan stack words conservatively with few false hits.
+    // memory holds addresses [base,heapLimit): both regions are reallocated on demand
+    // up to their maximum size, addresses never change
+    private final Program program;
+    private final int[] code;      // program.code
+    private JitCompiler jit;       // only for the tiered engine
+    private int depth = 0;         // compiled functions running
+    private int[] memory;
+    private int base;
     
     private int ip = 0;
     private int sp = MEMSIZE;
     
-    private int hp = 0;       
+    private int hp = MEMSIZE;       
     private int fp = MEMSIZE; 
     private int ra;           
     private int tm;
+    // display: frame of the function active at each nesting level, for the levels whose
+    // frames are reached from nested functions (saved and restored by sdisp and rdisp)
+    private final int[] display;
+
+    private final int maxStack;
+    private final int maxHeap;
+    private int heapLimit;
+    private final GarbageCollector gc = new GarbageCollector();
+    private int allocLimit;    // end of the region hp is bumping through
+    private int heapTop;       // top of the heap while hp is inside a hole
+    private int[] holes = new int[0];
+    private int nextHole = 0;
+
+    private final ArenaPool pool; // where memory comes from and goes back on close(), null if none
+    private java.io.PrintStream out = System.out;
+
+    private final Budget budget;  // null if none
+    private int[] ordinal;        // code address -> index of the instruction containing it
+    private int segment;          // address where the straight-line run being executed started
+    private long executed = -1;   // instructions executed, counted by the budgeted loop only
+    private long deadline;        // System.nanoTime() at which the time budget runs out
+    private int clock = TIMECHECK; // transfers before the next look at the clock
     
     public ExecuteVM(int[] code) {
-      this.code = code;
+      this(code, STACKSIZE, HEAPSIZE);
+    }
+
+    public ExecuteVM(int[] code, int stackSize, int heapSize) {
+      this(Program.of(code), stackSize, heapSize, null, null);
+    }
+
+    public ExecuteVM(int[] code, Budget budget) {
+      this(Program.of(code), budget.stack, budget.heap, budget, null);
+    }
+
+    public ExecuteVM(Program program) {
+      this(program, null, null);
+    }
+
+    // budget and pool may be null
+    public ExecuteVM(Program program, Budget budget, ArenaPool pool) {
+      this(program, budget == null ? STACKSIZE : budget.stack, budget == null ? HEAPSIZE : budget.heap, budget, pool);
+    }
+
+    private ExecuteVM(Program program, int stackSize, int heapSize, Budget budget, ArenaPool pool) {
+      if (stackSize < 1 || stackSize > MEMSIZE || heapSize < 1 || heapSize > Integer.MAX_VALUE - MEMSIZE)
+        throw new IllegalArgumentException("Invalid memory size: stack "+stackSize+", heap "+heapSize);
+      this.program = program;
+      this.code = program.code;
+      this.budget = budget;
+      this.pool = pool;
+      this.maxStack = stackSize;
+      this.maxHeap = heapSize;
+      int stackCap = Math.min(stackSize, INITIALSIZE);
+      int heapCap = Math.min(heapSize, INITIALSIZE);
+      this.memory = pool == null ? new int[stackCap + heapCap] : pool.acquire(stackCap + heapCap);
+      if (memory.length > stackCap + heapCap) { // a pooled memory, possibly grown by earlier runs
+        stackCap = Math.min(stackSize, memory.length/2);
+        heapCap = Math.min(heapSize, memory.length - stackCap);
+      }
+      this.base = MEMSIZE - stackCap;
+      this.heapLimit = MEMSIZE + heapCap;
+      this.allocLimit = heapLimit;
+      this.display = new int[program.levels];
+    }
+
+    // gives the memory back to the pool (if any): the VM cannot run anymore
+    @Override
+    public void close() {
+      if (pool != null && memory != null) pool.release(memory);
+      memory = null;
+    }
+
+    // where print writes, System.out by default
+    public void setOutput(java.io.PrintStream out) {
+      this.out = out;
+    }
+
+    public GarbageCollector getGC() {
+      return gc;
     }
     
     public void cpu() {
+      cpu(Engine.SWITCH);
+    }
+
+    // with an instruction or time limit in the budget the budgeted loop runs, whatever the engine
+    public void cpu(Engine engine) {
+      try {
+        if (budget != null && budget.limitsExecution()) executeBudgeted();
+        else if (engine == Engine.SWITCH) execute();
+        else if (engine == Engine.TIERED) {
+          if (jit == null) jit = program.jit();
+          executeTiered();
+        } else executeThreaded(program.threaded());
+      } catch (Halt h) {
+        depth = 0;
+      } catch (ArrayIndexOutOfBoundsException e) {
+        throw new MemoryException("Invalid memory access at ip "+(ip-1));
+      } catch (BudgetException e) {
+        if (e.ip < 0) e.ip = start(ip-1);
+        e.executed = executed;
+        throw e;
+      }
+    }
+
+    // instructions executed by the last run with an instruction or time limit, -1 if none
+    public long getExecuted() {
+      return executed;
+    }
+
+    /*
+     * Runs the program as the SWITCH engine does, collecting an execution profile.
+     * Profiling has its own interpreter loop: the engines pay nothing for it.
+     */
+    public void cpu(Profiler profiler) {
+      profiler.start();
+      try {
+        executeProfiled(profiler);
+      } catch (ArrayIndexOutOfBoundsException e) {
+        throw new MemoryException("Invalid memory access at ip "+(ip-1));
+      }
+    }
+
+    int[] getCode() {
+      return code;
+    }
+
+    // racy reads of the registers and of the stack for SamplingProfiler, running in another thread
+    int sampleIp() { return ip; }
+    int sampleFp() { return fp; }
+    int sampleStack(int address) {
+      int[] m = memory;
+      int a = address - base;
+      return a >= 0 && a < m.length ? m[a] : 0;
+    }
+
+    public int getCompiledFunctions() {
+      return jit == null ? 0 : jit.getCompiledFunctions();
+    }
+
+    // halt reached while compiled functions are running: unwinds them
+    private static class Halt extends RuntimeException {
+      private static final long serialVersionUID = 1L;
+    }
+
+    private void execute() {
+      while ( true ) {
+        int bytecode = code[ip++]; // fetch
+        int v1,v2;
+        int address;
+        switch ( bytecode ) {
+          case SVMParser.PUSH:
+            push( code[ip++] );
+            break;
+          case SVMParser.POP:
+            pop();
+            break;
+          case SVMParser.ADD :
+            v1=pop();
+            v2=pop();
+            push(v2 + v1);
+            break;
+          case SVMParser.MULT :
+            v1=pop();
+            v2=pop();
+            push(v2 * v1);
+            break;
+          case SVMParser.DIV :
+            v1=pop();
+            v2=pop();
+            push(v2 / v1);
+            break;
+          case SVMParser.SUB :
+            v1=pop();
+            v2=pop();
+            push(v2 - v1);
+            break;
+          case SVMParser.STOREW : //
+            address = pop();
+            memory[address-base] = pop();    
+            break;
+          case SVMParser.LOADW : //
+            push(memory[pop()-base]);
+            break;
+          case SVMParser.BRANCH : 
+            address = code[ip];
+            ip = address;
+            break;
+          case SVMParser.BRANCHEQ :
+            address = code[ip++];
+            v1=pop();
+            v2=pop();
+            if (v2 == v1) ip = address;
+            break;
+          case SVMParser.BRANCHLESSEQ :
+            address = code[ip++];
+            v1=pop();
+            v2=pop();
+            if (v2 <= v1) ip = address;
+            break;
+          case SVMParser.JS : //
+            address = pop();
+            ra = ip;
+            ip = address;
+            break;
+          case SVMParser.TAILJS : // jump reusing the current frame
+            address = tailCall(code[ip++]);
+            ip = address;
+            break;
+         case SVMParser.STORERA : //
+            ra=pop();
+            break;
+         case SVMParser.LOADRA : //
+            push(ra);
+            break;
+         case SVMParser.STORETM : 
+            tm=pop();
+            break;
+         case SVMParser.LOADTM : 
+            push(tm);
+            break;
+         case SVMParser.LOADFP : //
+            push(fp);
+            break;
+         case SVMParser.STOREFP : //
+            fp=pop();
+            break;
+         case SVMParser.COPYFP : //
+            fp=sp;
+            break;
+         case SVMParser.STOREHP : //
+            hp=pop();
+            if (hp >= heapLimit) growHeap(hp-MEMSIZE+1);
+            break;
+         case SVMParser.LOADHP : //
+            push(hp);
+            break;
+         case SVMParser.NEW : // pop dispatch pointer and field values, push object pointer
+            newObject();
+            break;
+         case SVMParser.LOADLOCAL : // lfp; push k; add; lw
+            push(memory[fp+code[ip++]-base]);
+            break;
+         case SVMParser.DUP : // stm; ltm; ltm
+            tm=memory[sp-base];
+            push(tm);
+            break;
+         case SVMParser.HPINC : // lhp; push 1; add; shp
+            hp++;
+            if (hp >= heapLimit) growHeap(hp-MEMSIZE+1);
+            break;
+         case SVMParser.LOADDISPLAY : // frame of the function active at level k
+            push(display[code[ip++]]);
+            break;
+         case SVMParser.SAVEDISPLAY : // push display[k]; display[k] = fp
+            push(display[code[ip]]);
+            display[code[ip++]] = fp;
+            break;
+         case SVMParser.RESTOREDISPLAY : // display[k] = pop
+            display[code[ip++]] = pop();
+            break;
+         case SVMParser.PRINT :
+            out.println((sp<MEMSIZE)?memory[sp-base]:"Empty stack!");
+            break;
+         case SVMParser.HALT :
+            return;
+        }
+      }
+    } 
+    
+    /*
+     * Same as execute(), counting the instructions and checking the budget at every
+     * taken branch and call: the instructions of a straight-line run are counted at
+     * once through ordinal, so the run stops at the first transfer after the
+     * instruction limit is exceeded.
+     */
+    private void executeBudgeted() {
+      if (ordinal == null) ordinal = program.ordinal();
+      deadline = budget.timeoutMillis > 0 ? System.nanoTime() + budget.timeoutMillis*1000000 : Long.MAX_VALUE;
+      executed = 0;
+      segment = ip;
+      try {
+      while ( true ) {
+        int bytecode = code[ip++]; // fetch
+        int v1,v2;
+        int address;
+        switch ( bytecode ) {
+          case SVMParser.PUSH:
+            push( code[ip++] );
+            break;
+          case SVMParser.POP:
+            pop();
+            break;
+          case SVMParser.ADD :
+            v1=pop();
+            v2=pop();
+            push(v2 + v1);
+            break;
+          case SVMParser.MULT :
+            v1=pop();
+            v2=pop();
+            push(v2 * v1);
+            break;
+          case SVMParser.DIV :
+            v1=pop();
+            v2=pop();
+            push(v2 / v1);
+            break;
+          case SVMParser.SUB :
+            v1=pop();
+            v2=pop();
+            push(v2 - v1);
+            break;
+          case SVMParser.STOREW : //
+            address = pop();
+            memory[address-base] = pop();    
+            break;
+          case SVMParser.LOADW : //
+            push(memory[pop()-base]);
+            break;
+          case SVMParser.BRANCH : 
+            address = code[ip];
+            transfer(ip-1, address);
+            ip = address;
+            break;
+          case SVMParser.BRANCHEQ :
+            address = code[ip++];
+            v1=pop();
+            v2=pop();
+            if (v2 == v1) { transfer(ip-2, address); ip = address; }
+            break;
+          case SVMParser.BRANCHLESSEQ :
+            address = code[ip++];
+            v1=pop();
+            v2=pop();
+            if (v2 <= v1) { transfer(ip-2, address); ip = address; }
+            break;
+          case SVMParser.JS : //
+            address = pop();
+            ra = ip;
+            transfer(ip-1, address);
+            ip = address;
+            break;
+          case SVMParser.TAILJS : // jump reusing the current frame
+            address = tailCall(code[ip++]);
+            transfer(ip-2, address);
+            ip = address;
+            break;
+         case SVMParser.STORERA : //
+            ra=pop();
+            break;
+         case SVMParser.LOADRA : //
+            push(ra);
+            break;
+         case SVMParser.STORETM : 
+            tm=pop();
+            break;
+         case SVMParser.LOADTM : 
+            push(tm);
+            break;
+         case SVMParser.LOADFP : //
+            push(fp);
+            break;
+         case SVMParser.STOREFP : //
+            fp=pop();
+            break;
+         case SVMParser.COPYFP : //
+            fp=sp;
+            break;
+         case SVMParser.STOREHP : //
+            hp=pop();
+            if (hp >= heapLimit) growHeap(hp-MEMSIZE+1);
+            break;
+         case SVMParser.LOADHP : //
+            push(hp);
+            break;
+         case SVMParser.NEW : // pop dispatch pointer and field values, push object pointer
+            newObject();
+            break;
+         case SVMParser.LOADLOCAL : // lfp; push k; add; lw
+            push(memory[fp+code[ip++]-base]);
+            break;
+         case SVMParser.DUP : // stm; ltm; ltm
+            tm=memory[sp-base];
+            push(tm);
+            break;
+         case SVMParser.HPINC : // lhp; push 1; add; shp
+            hp++;
+            if (hp >= heapLimit) growHeap(hp-MEMSIZE+1);
+            break;
+         case SVMParser.LOADDISPLAY : // frame of the function active at level k
+            push(display[code[ip++]]);
+            break;
+         case SVMParser.SAVEDISPLAY : // push display[k]; display[k] = fp
+            push(display[code[ip]]);
+            display[code[ip++]] = fp;
+            break;
+         case SVMParser.RESTOREDISPLAY : // display[k] = pop
+            display[code[ip++]] = pop();
+            break;
+         case SVMParser.PRINT :
+            out.println((sp<MEMSIZE)?memory[sp-base]:"Empty stack!");
+            break;
+         case SVMParser.HALT :
+            return;
+        }
+      }
+      } finally {
+        // the run since the last transfer: up to the instruction that halted or failed
+        if (segment >= 0 && segment < code.length && ip > segment && ip <= code.length)
+          executed += ordinal[ip-1] - ordinal[segment] + 1;
+      }
+    }
+
+    /*
+     * Taken branch or call at address from to target: the straight-line run since the
+     * last one is counted and the limits are checked. The clock is read every
+     * TIMECHECK transfers only.
+     */
+    private void transfer(int from, int target) {
+      executed += ordinal[from] - ordinal[segment] + 1;
+      segment = target;
+      if (executed > budget.instructions)
+        throw exceeded(BudgetException.Limit.INSTRUCTIONS, "Instruction budget of "+budget.instructions+" exceeded", from);
+      if (--clock == 0) {
+        clock = TIMECHECK;
+        if (System.nanoTime() > deadline)
+          throw exceeded(BudgetException.Limit.TIME, "Time budget of "+budget.timeoutMillis+" ms exceeded", from);
+      }
+    }
+
+    private BudgetException exceeded(BudgetException.Limit limit, String message, int address) {
+      BudgetException e = new BudgetException(limit, message+" at ip "+address);
+      e.ip = address;
+      segment = -1; // already counted
+      return e;
+    }
+
+    // address of the instruction containing the given code address
+    private int start(int address) {
+      int a = 0;
+      while (a < code.length && a+ThreadedCode.length(code[a]) <= address) a += ThreadedCode.length(code[a]);
+      return a;
+    }
+
+    // execute() counting opcodes, calls and returns for the profiler
+    private void executeProfiled(Profiler profiler) {
+      final long[] opcodes = profiler.opcodes;
+      long executed = 0;
+      try {
+      while ( true ) {
+        int bytecode = code[ip++]; // fetch
+        opcodes[bytecode]++;
+        executed++;
+        int v1,v2;
+        int address;
+        switch ( bytecode ) {
+          case SVMParser.PUSH:
+            push( code[ip++] );
+            break;
+          case SVMParser.POP:
+            pop();
+            break;
+          case SVMParser.ADD :
+            v1=pop();
+            v2=pop();
+            push(v2 + v1);
+            break;
+          case SVMParser.MULT :
+            v1=pop();
+            v2=pop();
+            push(v2 * v1);
+            break;
+          case SVMParser.DIV :
+            v1=pop();
+            v2=pop();
+            push(v2 / v1);
+            break;
+          case SVMParser.SUB :
+            v1=pop();
+            v2=pop();
+            push(v2 - v1);
+            break;
+          case SVMParser.STOREW : //
+            address = pop();
+            memory[address-base] = pop();    
+            break;
+          case SVMParser.LOADW : //
+            push(memory[pop()-base]);
+            break;
+          case SVMParser.BRANCH : 
+            address = code[ip];
+            ip = address;
+            break;
+          case SVMParser.BRANCHEQ :
+            address = code[ip++];
+            v1=pop();
+            v2=pop();
+            if (v2 == v1) ip = address;
+            break;
+          case SVMParser.BRANCHLESSEQ :
+            address = code[ip++];
+            v1=pop();
+            v2=pop();
+            if (v2 <= v1) ip = address;
+            break;
+          case SVMParser.JS : //
+            address = pop();
+            ra = ip;
+            ip = address;
+            profiler.jump(address, ra, executed);
+            break;
+          case SVMParser.TAILJS : // jump reusing the current frame
+            address = tailCall(code[ip++]);
+            ip = address;
+            profiler.tailJump(address, executed);
+            break;
+         case SVMParser.STORERA : //
+            ra=pop();
+            break;
+         case SVMParser.LOADRA : //
+            push(ra);
+            break;
+         case SVMParser.STORETM : 
+            tm=pop();
+            break;
+         case SVMParser.LOADTM : 
+            push(tm);
+            break;
+         case SVMParser.LOADFP : //
+            push(fp);
+            break;
+         case SVMParser.STOREFP : //
+            fp=pop();
+            break;
+         case SVMParser.COPYFP : //
+            fp=sp;
+            break;
+         case SVMParser.STOREHP : //
+            hp=pop();
+            if (hp >= heapLimit) growHeap(hp-MEMSIZE+1);
+            break;
+         case SVMParser.LOADHP : //
+            push(hp);
+            break;
+         case SVMParser.NEW : // pop dispatch pointer and field values, push object pointer
+            newObject();
+            break;
+         case SVMParser.LOADLOCAL : // lfp; push k; add; lw
+            push(memory[fp+code[ip++]-base]);
+            break;
+         case SVMParser.DUP : // stm; ltm; ltm
+            tm=memory[sp-base];
+            push(tm);
+            break;
+         case SVMParser.HPINC : // lhp; push 1; add; shp
+            hp++;
+            if (hp >= heapLimit) growHeap(hp-MEMSIZE+1);
+            break;
+         case SVMParser.LOADDISPLAY : // frame of the function active at level k
+            push(display[code[ip++]]);
+            break;
+         case SVMParser.SAVEDISPLAY : // push display[k]; display[k] = fp
+            push(display[code[ip]]);
+            display[code[ip++]] = fp;
+            break;
+         case SVMParser.RESTOREDISPLAY : // display[k] = pop
+            display[code[ip++]] = pop();
+            break;
+         case SVMParser.PRINT :
+            out.println((sp<MEMSIZE)?memory[sp-base]:"Empty stack!");
+            break;
+         case SVMParser.HALT :
+            return;
+        }
+      }
+      } finally {
+        profiler.finish(executed);
+      }
+    }
+
+    /*
+     * Same as execute(), counting the entries of functions through jit: hot functions
+     * are compiled and run natively. Also used by compiled code to run interpreted
+     * callees: it returns when the callee jumps back to JITRETURN.
+     */
+    private void executeTiered() {
       while ( true ) {
         int bytecode = code[ip++]; // fetch
         int v1,v2;
@@ -53,10 +655,10 @@ public class ExecuteVM {
             break;
           case SVMParser.STOREW : //
             address = pop();
-            memory[address] = pop();    
+            memory[address-base] = pop();    
             break;
           case SVMParser.LOADW : //
-            push(memory[pop()]);
+            push(memory[pop()-base]);
             break;
           case SVMParser.BRANCH : 
             address = code[ip];
@@ -78,6 +680,21 @@ public class ExecuteVM {
             address = pop();
             ra = ip;
             ip = address;
+            if (address == JITRETURN) return; // back to the compiled caller
+            if (depth < JITDEPTH) {
+              JitCompiler.Function f = jit.enter(address);
+              if (f != null) ip = run(f);
+              if (ip == JITRETURN) return;
+            }
+            break;
+          case SVMParser.TAILJS : // jump reusing the current frame
+            address = tailCall(code[ip++]);
+            ip = address;
+            if (depth < JITDEPTH) {
+              JitCompiler.Function f = jit.enter(address);
+              if (f != null) ip = run(f);
+              if (ip == JITRETURN) return;
+            }
             break;
          case SVMParser.STORERA : //
             ra=pop();
@@ -102,25 +719,344 @@ public class ExecuteVM {
             break;
          case SVMParser.STOREHP : //
             hp=pop();
+            if (hp >= heapLimit) growHeap(hp-MEMSIZE+1);
             break;
          case SVMParser.LOADHP : //
             push(hp);
             break;
+         case SVMParser.NEW : // pop dispatch pointer and field values, push object pointer
+            newObject();
+            break;
+         case SVMParser.LOADLOCAL : // lfp; push k; add; lw
+            push(memory[fp+code[ip++]-base]);
+            break;
+         case SVMParser.DUP : // stm; ltm; ltm
+            tm=memory[sp-base];
+            push(tm);
+            break;
+         case SVMParser.HPINC : // lhp; push 1; add; shp
+            hp++;
+            if (hp >= heapLimit) growHeap(hp-MEMSIZE+1);
+            break;
+         case SVMParser.LOADDISPLAY : // frame of the function active at level k
+            push(display[code[ip++]]);
+            break;
+         case SVMParser.SAVEDISPLAY : // push display[k]; display[k] = fp
+            push(display[code[ip]]);
+            display[code[ip++]] = fp;
+            break;
+         case SVMParser.RESTOREDISPLAY : // display[k] = pop
+            display[code[ip++]] = pop();
+            break;
          case SVMParser.PRINT :
-            System.out.println((sp<MEMSIZE)?memory[sp]:"Empty stack!");
+            out.println((sp<MEMSIZE)?memory[sp-base]:"Empty stack!");
             break;
          case SVMParser.HALT :
+            if (depth > 0) throw new Halt();
             return;
         }
       }
     } 
     
+    /*
+     * Same semantics as execute(), on the decoded program. The registers live in
+     * local variables and are written back to the fields only around the
+     * operations that need them (allocation, stack and heap growth, print).
+     */
+    private void executeThreaded(ThreadedCode t) {
+      final int[] op = t.op, arg = t.arg, addr = t.addr, index = t.index;
+      int[] m = memory;
+      int base = this.base, sp = this.sp, fp = this.fp, hp = this.hp, ra = this.ra, tm = this.tm;
+      int pc = index[ip];
+      int i = pc;
+      int v1,v2;
+      try {
+        while ( true ) {
+          i = pc++;
+          switch ( op[i] ) {
+            case SVMParser.PUSH:
+              if (sp == base) { growStack(); base = this.base; m = memory; }
+              m[--sp-base] = arg[i];
+              break;
+            case SVMParser.POP:
+              sp++;
+              break;
+            case ThreadedCode.ADDI:
+              m[sp-base] += arg[i];
+              break;
+            case ThreadedCode.LOADOFF:
+              m[sp-base] = m[m[sp-base]+arg[i]-base];
+              break;
+            case SVMParser.ADD :
+              v1 = m[sp++-base];
+              m[sp-base] += v1;
+              break;
+            case SVMParser.MULT :
+              v1 = m[sp++-base];
+              m[sp-base] *= v1;
+              break;
+            case SVMParser.DIV :
+              v1 = m[sp++-base];
+              m[sp-base] /= v1;
+              break;
+            case SVMParser.SUB :
+              v1 = m[sp++-base];
+              m[sp-base] -= v1;
+              break;
+            case SVMParser.STOREW :
+              v1 = m[sp++-base];
+              m[v1-base] = m[sp++-base];
+              break;
+            case SVMParser.LOADW :
+              m[sp-base] = m[m[sp-base]-base];
+              break;
+            case SVMParser.BRANCH :
+              pc = arg[i];
+              break;
+            case SVMParser.BRANCHEQ :
+              v1 = m[sp++-base];
+              v2 = m[sp++-base];
+              if (v2 == v1) pc = arg[i];
+              break;
+            case SVMParser.BRANCHLESSEQ :
+              v1 = m[sp++-base];
+              v2 = m[sp++-base];
+              if (v2 <= v1) pc = arg[i];
+              break;
+            case SVMParser.JS :
+              v1 = m[sp++-base];
+              ra = addr[pc];
+              pc = index[v1];
+              if (pc < 0) throw new MemoryException("Invalid jump to "+v1+" at ip "+addr[i]);
+              break;
+            case SVMParser.TAILJS :
+              this.sp = sp; this.fp = fp;
+              v1 = tailCall(arg[i]); // moves the frame, the stack may grow
+              sp = this.sp; ra = this.ra; base = this.base; m = memory;
+              pc = index[v1];
+              if (pc < 0) throw new MemoryException("Invalid jump to "+v1+" at ip "+addr[i]);
+              break;
+            case SVMParser.STORERA :
+              ra = m[sp++-base];
+              break;
+            case SVMParser.LOADRA :
+              if (sp == base) { growStack(); base = this.base; m = memory; }
+              m[--sp-base] = ra;
+              break;
+            case SVMParser.STORETM :
+              tm = m[sp++-base];
+              break;
+            case SVMParser.LOADTM :
+              if (sp == base) { growStack(); base = this.base; m = memory; }
+              m[--sp-base] = tm;
+              break;
+            case SVMParser.LOADFP :
+              if (sp == base) { growStack(); base = this.base; m = memory; }
+              m[--sp-base] = fp;
+              break;
+            case SVMParser.STOREFP :
+              fp = m[sp++-base];
+              break;
+            case SVMParser.COPYFP :
+              fp = sp;
+              break;
+            case SVMParser.STOREHP :
+              hp = m[sp++-base];
+              if (hp >= heapLimit) { growHeap(hp-MEMSIZE+1); m = memory; }
+              break;
+            case SVMParser.LOADHP :
+              if (sp == base) { growStack(); base = this.base; m = memory; }
+              m[--sp-base] = hp;
+              break;
+            case SVMParser.NEW :
+              this.sp = sp; this.hp = hp; this.tm = tm;
+              newObject(); // allocation may collect, the collector needs the registers
+              sp = this.sp; hp = this.hp; base = this.base; m = memory;
+              break;
+            case SVMParser.LOADLOCAL :
+              if (sp == base) { growStack(); base = this.base; m = memory; }
+              m[--sp-base] = m[fp+arg[i]-base];
+              break;
+            case SVMParser.DUP :
+              tm = m[sp-base];
+              if (sp == base) { growStack(); base = this.base; m = memory; }
+              m[--sp-base] = tm;
+              break;
+            case SVMParser.HPINC :
+              hp++;
+              if (hp >= heapLimit) { growHeap(hp-MEMSIZE+1); m = memory; }
+              break;
+            case SVMParser.LOADDISPLAY :
+              if (sp == base) { growStack(); base = this.base; m = memory; }
+              m[--sp-base] = display[arg[i]];
+              break;
+            case SVMParser.SAVEDISPLAY :
+              if (sp == base) { growStack(); base = this.base; m = memory; }
+              m[--sp-base] = display[arg[i]];
+              display[arg[i]] = fp;
+              break;
+            case SVMParser.RESTOREDISPLAY :
+              display[arg[i]] = m[sp++-base];
+              break;
+            case SVMParser.PRINT :
+              out.println((sp<MEMSIZE)?m[sp-base]:"Empty stack!");
+              break;
+            case SVMParser.HALT :
+              ip = addr[pc];
+              return;
+          }
+        }
+      } catch (ArrayIndexOutOfBoundsException | MemoryException e) {
+        ip = (i >= 0 && i < op.length ? addr[i] : 0)+1;
+        throw e;
+      } finally {
+        this.sp = sp; this.fp = fp; this.hp = hp; this.ra = ra; this.tm = tm;
+      }
+    }
+
+    private int run(JitCompiler.Function f) {
+      depth++;
+      int next = f.run(this);
+      depth--;
+      return next;
+    }
+
+    /*
+     * Instructions for the code compiled by JitCompiler: the JVM inlines them
+     * into the generated classes. A call runs the callee, compiled or interpreted,
+     * until it returns to JITRETURN.
+     */
+    void jCall() {
+      int address = pop();
+      ra = JITRETURN;
+      JitCompiler.Function f = depth < JITDEPTH ? jit.enter(address) : null;
+      int next = f != null ? run(f) : address;
+      if (next != JITRETURN) {
+        ip = next;
+        executeTiered();
+      }
+    }
+
+    int jReturn() { return pop(); }
+    int jTailCall(int words) { return tailCall(words); }
+    void jPush(int v) { push(v); }
+    void jPop() { pop(); }
+    void jAdd() { int v1 = pop(); push(pop() + v1); }
+    void jSub() { int v1 = pop(); push(pop() - v1); }
+    void jMult() { int v1 = pop(); push(pop() * v1); }
+    void jDiv() { int v1 = pop(); push(pop() / v1); }
+    void jStoreW() { int address = pop(); memory[address-base] = pop(); }
+    void jLoadW() { push(memory[pop()-base]); }
+    boolean jEq() { int v1 = pop(); return pop() == v1; }
+    boolean jLeq() { int v1 = pop(); return pop() <= v1; }
+    void jLoadRA() { push(ra); }
+    void jStoreRA() { ra = pop(); }
+    void jLoadTM() { push(tm); }
+    void jStoreTM() { tm = pop(); }
+    void jLoadFP() { push(fp); }
+    void jStoreFP() { fp = pop(); }
+    void jCopyFP() { fp = sp; }
+    void jLoadHP() { push(hp); }
+    void jStoreHP() { hp = pop(); if (hp >= heapLimit) growHeap(hp-MEMSIZE+1); }
+    void jNew() { newObject(); }
+    void jLoadLocal(int k) { push(memory[fp+k-base]); }
+    void jDup() { tm = memory[sp-base]; push(tm); }
+    void jHpInc() { hp++; if (hp >= heapLimit) growHeap(hp-MEMSIZE+1); }
+    void jLoadDisplay(int k) { push(display[k]); }
+    void jSaveDisplay(int k) { push(display[k]); display[k] = fp; }
+    void jRestoreDisplay(int k) { display[k] = pop(); }
+    void jPrint() { out.println((sp<MEMSIZE)?memory[sp-base]:"Empty stack!"); }
+
+    /*
+     * Frame reuse of tjs n: pops the address of the control link of the current frame
+     * and the address of the callee, which is returned; the n words under them
+     * (arguments and access link of the callee) move right below the control link,
+     * replacing the current frame, and the return address of the current frame goes
+     * to ra, to be saved by the callee. The callee then returns where the current
+     * function would have, with the stack as deep as when the current one was called.
+     */
+    private int tailCall(int words) {
+      int link = pop();
+      int address = pop();
+      ra = memory[fp-1-base];
+      int to = link-words;
+      while (to < base) growStack(); // a callee with more arguments than the frame has words
+      System.arraycopy(memory, sp-base, memory, to-base, words);
+      sp = to;
+      return address;
+    }
+
+    private void newObject() {
+      int address = pop();
+      int fields = memory[address-1-base]; // number of fields, stored before the dispatch table
+      allocate(fields+2);
+      memory[hp-base] = GarbageCollector.header(GarbageCollector.OBJECT, fields+1);
+      for (int i = 1; i <= fields; i++) memory[hp+i-base] = pop();
+      memory[hp+fields+1-base] = address;
+      hp += fields+2;
+      push(hp-1);
+    }
+
+    private void allocate(int words) {
+      boolean collected = false;
+      while (hp + words > allocLimit) {
+        if (allocLimit < heapLimit) { // leaving a hole: what is left of it becomes a free block
+          if (hp < allocLimit) memory[hp-base] = GarbageCollector.header(GarbageCollector.FREE, allocLimit-hp-1);
+          nextRegion();
+        } else if (!collected) {
+          heapTop = gc.collect(memory, base, MEMSIZE, hp, sp, MEMSIZE, tm);
+          holes = gc.getHoles();
+          nextHole = 0;
+          collected = true;
+          // grow rather than collecting again soon if the live words are still more than half the heap
+          int live = heapTop-MEMSIZE;
+          for (int h = 0; h < holes.length; h += 2) live -= holes[h+1]-holes[h];
+          if (2*live > heapLimit-MEMSIZE && heapLimit-MEMSIZE < maxHeap)
+            growHeap(Math.min(maxHeap, 2*(heapLimit-MEMSIZE)));
+          nextRegion();
+        } else if (heapLimit-MEMSIZE < maxHeap) {
+          growHeap(hp+words-MEMSIZE);
+        } else throw new BudgetException(BudgetException.Limit.HEAP, "Heap overflow: cannot allocate "+words+" words in a heap of "+maxHeap+" words");
+      }
+    }
+
+    private void nextRegion() {
+      if (nextHole < holes.length) {
+        hp = holes[nextHole++];
+        allocLimit = holes[nextHole++];
+      } else {
+        hp = heapTop;
+        allocLimit = heapLimit;
+      }
+    }
+
+    // reallocates memory so that the heap can hold at least the given number of words
+    private void growHeap(int words) {
+      if (words > maxHeap) throw new BudgetException(BudgetException.Limit.HEAP, "Heap overflow: heap limited to "+maxHeap+" words");
+      int heapCap = Math.min(maxHeap, Math.max(words, 2*(heapLimit-MEMSIZE)));
+      memory = java.util.Arrays.copyOf(memory, MEMSIZE-base+heapCap);
+      if (allocLimit == heapLimit) allocLimit = MEMSIZE+heapCap;
+      heapLimit = MEMSIZE+heapCap;
+    }
+
+    // reallocates memory doubling the stack region, the heap keeps its addresses
+    private void growStack() {
+      int stackCap = MEMSIZE-base;
+      if (stackCap >= maxStack) throw new BudgetException(BudgetException.Limit.STACK, "Stack overflow: stack limited to "+maxStack+" words");
+      int newBase = MEMSIZE-Math.min(maxStack, 2*stackCap);
+      int[] newMemory = new int[memory.length+(base-newBase)];
+      System.arraycopy(memory, 0, newMemory, base-newBase, memory.length);
+      memory = newMemory;
+      base = newBase;
+    }
+    
     private int pop() {
-      return memory[sp++];
+      return memory[sp++ - base];
     }
     
     private void push(int v) {
-      memory[--sp] = v;
+      if (sp == base) growStack();
+      memory[--sp - base] = v;
     }
     
 }
\ No newline at end of file
@@ -0,0 +1,190 @@
+package svm;
+
+/*
+ * Mark-compact collector for the SVM heap.
+ *
+ * Heap layout: the heap is a sequence of blocks, each starting with a header
+ * word (size<<2 | kind) where size is the number of words following the header.
+ *   OBJECT: [hdr][field n-1]...[field 0][dispatch pointer]  (object pointer -> dispatch pointer)
+ *   TABLE:  [hdr][mask m-1]...[mask 0][n fields][method labels...]  (dispatch pointer -> first label)
+ *   FREE:   [hdr][dead words...]
+ * Bit i of the class pointer masks tells whether field i holds an object pointer.
+ *
+ * Roots are the stack words between sp and the stack bottom plus the VM registers.
+ * Stack words are untyped, so they are treated conservatively: an object referenced
+ * from the stack is pinned and never moved. Dispatch tables are always live and pinned.
+ * Everything else is slid down (Lisp2 style) and the holes left before pinned blocks
+ * are turned into FREE blocks so that the heap stays parsable; the allocator then
+ * bumps through these holes before going back to the top of the heap.
+ */
+public class GarbageCollector {
+
+    public static final int OBJECT = 0;
+    public static final int TABLE = 1;
+    public static final int FREE = 2;
+
+    public static int header(int kind, int size) {
+      return (size << 2) | kind;
+    }
+
+    static int kind(int header) {
+      return header & 3;
+    }
+
+    static int size(int header) {
+      return header >>> 2;
+    }
+
+    private int collections = 0;
+    private long totalPauseNanos = 0;
+    private long maxPauseNanos = 0;
+    private long wordsReclaimed = 0;
+    private long wordsMoved = 0;
+    private long objectsPinned = 0;
+    private int lastLiveWords = 0;
+
+    private int[] holes = new int[0]; // [start,end) pairs of the holes left by the last collection
+
+    /*
+     * Collects the heap addresses [heapStart,hp) and returns the new top of the heap.
+     * Roots are the stack addresses [sp,memEnd) and the given register values.
+     * Address a is stored in memory[a-base].
+     */
+    public int collect(int[] memory, int base, int heapStart, int hp, int sp, int memEnd, int... registers) {
+      long start = System.nanoTime();
+
+      // parse the heap into blocks
+      int[] blockStart = new int[16];
+      int blocks = 0;
+      int[] opBlock = new int[hp - heapStart]; // object pointer -> block index+1
+      for (int a = heapStart; a < hp; a += size(memory[a - base]) + 1) {
+        if (blocks == blockStart.length) blockStart = java.util.Arrays.copyOf(blockStart, blocks * 2);
+        if (kind(memory[a - base]) == OBJECT) opBlock[a + size(memory[a - base]) - heapStart] = blocks + 1;
+        blockStart[blocks++] = a;
+      }
+
+      // mark
+      boolean[] marked = new boolean[blocks];
+      boolean[] pinned = new boolean[blocks];
+      int[] work = new int[blocks];
+      int top = 0;
+      for (int b = 0; b < blocks; b++)
+        if (kind(memory[blockStart[b] - base]) == TABLE) marked[b] = pinned[b] = true;
+      for (int a = sp; a < memEnd + registers.length; a++) {
+        int v = a < memEnd ? memory[a - base] : registers[a - memEnd];
+        int b = blockOf(opBlock, heapStart, v);
+        if (b < 0) continue;
+        pinned[b] = true;
+        if (!marked[b]) { marked[b] = true; work[top++] = b; }
+      }
+      while (top > 0) {
+        int b = work[--top];
+        int op = blockStart[b] + size(memory[blockStart[b] - base]);
+        int dp = memory[op - base];
+        int fields = memory[dp - 1 - base];
+        for (int i = 0; i < fields; i++) {
+          if (!isPointerField(memory, base, dp, i)) continue;
+          int c = blockOf(opBlock, heapStart, memory[op - 1 - i - base]);
+          if (c >= 0 && !marked[c]) { marked[c] = true; work[top++] = c; }
+        }
+      }
+
+      // compute forwarding addresses, leaving pinned blocks where they are
+      int[] forward = new int[blocks];
+      int[] holes = new int[2 * blocks];
+      int nholes = 0;
+      int free = heapStart;
+      int pins = 0;
+      int live = 0;
+      for (int b = 0; b < blocks; b++) {
+        if (!marked[b]) continue;
+        int s = blockStart[b];
+        int words = size(memory[s - base]) + 1;
+        live += words;
+        if (pinned[b]) {
+          if (free < s) { holes[nholes++] = free; holes[nholes++] = s - free; }
+          forward[b] = s;
+          free = s + words;
+          if (kind(memory[s - base]) == OBJECT) pins++;
+        } else {
+          forward[b] = free;
+          free += words;
+        }
+      }
+
+      // update pointer fields of live objects
+      for (int b = 0; b < blocks; b++) {
+        int s = blockStart[b];
+        if (!marked[b] || kind(memory[s - base]) != OBJECT) continue;
+        int op = s + size(memory[s - base]);
+        int dp = memory[op - base];
+        int fields = memory[dp - 1 - base];
+        for (int i = 0; i < fields; i++) {
+          if (!isPointerField(memory, base, dp, i)) continue;
+          int c = blockOf(opBlock, heapStart, memory[op - 1 - i - base]);
+          if (c >= 0) memory[op - 1 - i - base] = forward[c] + size(memory[blockStart[c] - base]);
+        }
+      }
+
+      // slide live blocks down (forward[b] <= blockStart[b], so ascending order is safe)
+      long moved = 0;
+      for (int b = 0; b < blocks; b++) {
+        int s = blockStart[b];
+        if (!marked[b] || forward[b] == s) continue;
+        int words = size(memory[s - base]) + 1;
+        System.arraycopy(memory, s - base, memory, forward[b] - base, words);
+        moved += words;
+      }
+      for (int h = 0; h < nholes; h += 2) {
+        memory[holes[h] - base] = header(FREE, holes[h + 1] - 1);
+        holes[h + 1] += holes[h];
+      }
+      this.holes = java.util.Arrays.copyOf(holes, nholes);
+
+      long pause = System.nanoTime() - start;
+      collections++;
+      totalPauseNanos += pause;
+      maxPauseNanos = Math.max(maxPauseNanos, pause);
+      wordsReclaimed += hp - heapStart - live;
+      wordsMoved += moved;
+      objectsPinned += pins;
+      lastLiveWords = live;
+      return free;
+    }
+
+    /*
+     * Holes left below the top of the heap by the last collection,
+     * as [start,end) pairs in ascending order.
+     */
+    public int[] getHoles() {
+      return holes;
+    }
+
+    private static int blockOf(int[] opBlock, int heapStart, int v) {
+      if (v < heapStart || v >= heapStart + opBlock.length) return -1;
+      return opBlock[v - heapStart] - 1;
+    }
+
+    private static boolean isPointerField(int[] memory, int base, int dp, int i) {
+      return (memory[dp - 2 - (i >>> 5) - base] & (1 << (i & 31))) != 0;
+    }
+
+    public int getCollections() { return collections; }
+    public long getTotalPauseNanos() { return totalPauseNanos; }
+    public long getMaxPauseNanos() { return maxPauseNanos; }
+    public long getBytesReclaimed() { return wordsReclaimed * Integer.BYTES; }
+    public long getBytesMoved() { return wordsMoved * Integer.BYTES; }
+    public long getObjectsPinned() { return objectsPinned; }
+    public int getLastLiveBytes() { return lastLiveWords * Integer.BYTES; }
+
+    @Override
+    public String toString() {
+      return "GC: " + collections + " collections" +
+          ", total pause " + totalPauseNanos / 1000 + " us" +
+          ", max pause " + maxPauseNanos / 1000 + " us" +
+          ", reclaimed " + getBytesReclaimed() + " bytes" +
+          ", moved " + getBytesMoved() + " bytes" +
+          ", pinned " + objectsPinned + " objects" +
+          ", live after last collection " + getLastLiveBytes() + " bytes";
+    }
+}
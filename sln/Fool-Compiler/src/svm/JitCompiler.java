@@ -0,0 +1,317 @@
+package svm;
+
+import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Translates hot SVM functions into JVM classes for the TIERED engine of ExecuteVM.
+ *
+ * A function starts at a js target whose first instruction is cfp (the code
+ * generator starts every function and method with "cfp; lra") and extends up
+ * to the next function. Its entries are counted and, once the threshold is
+ * reached, its instructions are translated one by one into calls to the j*
+ * methods of ExecuteVM, with operands as constants and branches as JVM branches.
+ * The JVM then compiles and inlines the generated code: no fetch and no dispatch
+ * are left, and memory and registers are those of the VM, so compiled and
+ * interpreted frames freely call each other.
+ *
+ * Function.run executes the function until control leaves it and returns the
+ * code address to continue at: the return address for "lra; js", the callee
+ * of a tail call (tjs, once the frame is replaced), the target of a branch
+ * outside the function, or the address of an instruction that is not
+ * translated (halt), which is left to the interpreter.
+ * Any other js is a call and goes through ExecuteVM.jCall, which runs the callee
+ * (compiled or interpreted) until it returns to the JITRETURN address.
+ *
+ * The classes are written directly in class file format version 49, which needs
+ * no stack map frames: operand stack is empty between SVM instructions and the
+ * only locals are this and the VM.
+ */
+class JitCompiler {
+
+    interface Function {
+      int run(ExecuteVM vm);
+    }
+
+    static final int MAXINSTRUCTIONS = 2000; // longer functions are cut, the rest is interpreted
+
+    private static final AtomicInteger classes = new AtomicInteger();
+
+    private final int[] code;
+    private final int threshold;
+    private final int[] entries;
+    private final Function[] functions;
+    private int compiled = 0;
+
+    // one compiler per Program: the compiled functions do not depend on the VM, so they are
+    // shared by all the VMs running the program (and compiled once by the JVM)
+    JitCompiler(int[] code, int threshold) {
+      this.code = code;
+      this.threshold = threshold;
+      this.entries = new int[code.length];
+      this.functions = new Function[code.length];
+    }
+
+    int getCompiledFunctions() {
+      return compiled;
+    }
+
+    /*
+     * Counts an entry at the given js target and returns the compiled function
+     * starting there, if any (compiling it when it becomes hot).
+     */
+    Function enter(int address) {
+      Function f = functions[address];
+      if (f != null || code[address] != SVMParser.COPYFP || ++entries[address] != threshold) return f;
+      return install(address);
+    }
+
+    // entries are counted without locking, compilation happens once per function
+    private synchronized Function install(int address) {
+      if (functions[address] == null) {
+        functions[address] = compile(address);
+        if (functions[address] != null) compiled++;
+      }
+      return functions[address];
+    }
+
+    // helper methods of ExecuteVM called by the generated code, by opcode
+    private static final Map<Integer,String[]> HELPERS = new HashMap<>();
+    static {
+      helper(SVMParser.PUSH, "jPush", "(I)V");
+      helper(SVMParser.POP, "jPop", "()V");
+      helper(SVMParser.ADD, "jAdd", "()V");
+      helper(SVMParser.SUB, "jSub", "()V");
+      helper(SVMParser.MULT, "jMult", "()V");
+      helper(SVMParser.DIV, "jDiv", "()V");
+      helper(SVMParser.STOREW, "jStoreW", "()V");
+      helper(SVMParser.LOADW, "jLoadW", "()V");
+      helper(SVMParser.BRANCHEQ, "jEq", "()Z");
+      helper(SVMParser.BRANCHLESSEQ, "jLeq", "()Z");
+      helper(SVMParser.JS, "jCall", "()V");
+      helper(SVMParser.LOADRA, "jLoadRA", "()V");
+      helper(SVMParser.STORERA, "jStoreRA", "()V");
+      helper(SVMParser.LOADTM, "jLoadTM", "()V");
+      helper(SVMParser.STORETM, "jStoreTM", "()V");
+      helper(SVMParser.LOADFP, "jLoadFP", "()V");
+      helper(SVMParser.STOREFP, "jStoreFP", "()V");
+      helper(SVMParser.COPYFP, "jCopyFP", "()V");
+      helper(SVMParser.LOADHP, "jLoadHP", "()V");
+      helper(SVMParser.STOREHP, "jStoreHP", "()V");
+      helper(SVMParser.NEW, "jNew", "()V");
+      helper(SVMParser.LOADLOCAL, "jLoadLocal", "(I)V");
+      helper(SVMParser.DUP, "jDup", "()V");
+      helper(SVMParser.HPINC, "jHpInc", "()V");
+      helper(SVMParser.LOADDISPLAY, "jLoadDisplay", "(I)V");
+      helper(SVMParser.SAVEDISPLAY, "jSaveDisplay", "(I)V");
+      helper(SVMParser.RESTOREDISPLAY, "jRestoreDisplay", "(I)V");
+      helper(SVMParser.PRINT, "jPrint", "()V");
+    }
+
+    private static void helper(int opcode, String name, String descriptor) {
+      HELPERS.put(opcode, new String[] {name, descriptor});
+    }
+
+    private Function compile(int entry) {
+      // extent of the function: up to the next function entry
+      List<Integer> starts = new ArrayList<>();
+      int end = entry;
+      while (end < code.length && starts.size() < MAXINSTRUCTIONS && (end == entry || code[end] != SVMParser.COPYFP)) {
+        starts.add(end);
+        end += ThreadedCode.length(code[end]);
+      }
+      boolean[] target = new boolean[end-entry];
+      for (int a : starts)
+        if (isBranch(code[a]) && code[a+1] >= entry && code[a+1] < end) target[code[a+1]-entry] = true;
+
+      String name = "svm/JitFunction"+entry+"_"+classes.incrementAndGet();
+      ClassFile cf = new ClassFile();
+      Bytecode bc = new Bytecode();
+      Map<Integer,Integer> offset = new HashMap<>(); // code address -> bytecode offset
+      List<int[]> jumps = new ArrayList<>();         // {bytecode offset of the jump, target code address}
+      for (int k = 0; k < starts.size(); k++) {
+        int a = starts.get(k);
+        int opcode = code[a];
+        offset.put(a, bc.length());
+        if (opcode == SVMParser.BRANCH) {
+          jumps.add(new int[] {bc.length(), code[a+1]});
+          bc.u1(GOTO); bc.u2(0);
+        } else if (opcode == SVMParser.JS && k > 0 && code[starts.get(k-1)] == SVMParser.LOADRA && !target[a-entry]) {
+          bc.u1(ALOAD_1); bc.u1(INVOKEVIRTUAL); bc.u2(cf.method("svm/ExecuteVM", "jReturn", "()I"));
+          bc.u1(IRETURN);
+        } else if (opcode == SVMParser.TAILJS) { // the frame is reused, the callee runs after the function returns
+          bc.u1(ALOAD_1); bc.ldc(cf, code[a+1]);
+          bc.u1(INVOKEVIRTUAL); bc.u2(cf.method("svm/ExecuteVM", "jTailCall", "(I)I"));
+          bc.u1(IRETURN);
+        } else if (HELPERS.containsKey(opcode)) {
+          String[] h = HELPERS.get(opcode);
+          bc.u1(ALOAD_1);
+          if (ThreadedCode.length(opcode) == 2 && !isBranch(opcode)) bc.ldc(cf, code[a+1]);
+          bc.u1(INVOKEVIRTUAL); bc.u2(cf.method("svm/ExecuteVM", h[0], h[1]));
+          if (isBranch(opcode)) {
+            jumps.add(new int[] {bc.length(), code[a+1]});
+            bc.u1(IFNE); bc.u2(0);
+          }
+        } else { // not translated: continue in the interpreter from here
+          bc.ldc(cf, a); bc.u1(IRETURN);
+        }
+      }
+      // falling off the end of the function and jumping out of it continue in the interpreter
+      Map<Integer,Integer> exits = new HashMap<>();
+      exits.put(end, bc.length());
+      bc.ldc(cf, end); bc.u1(IRETURN);
+      for (int[] j : jumps) {
+        Integer to = offset.get(j[1]);
+        if (to == null) to = exits.get(j[1]);
+        if (to == null) {
+          to = bc.length();
+          exits.put(j[1], to);
+          bc.ldc(cf, j[1]); bc.u1(IRETURN);
+        }
+        bc.patch(j[0]+1, to-j[0]);
+      }
+      if (bc.length() > Short.MAX_VALUE) return null; // beyond 16 bit branch offsets, keep interpreting
+
+      try {
+        Class<?> c = MethodHandles.lookup().defineClass(cf.bytes(name, bc));
+        return (Function) c.getDeclaredConstructor().newInstance();
+      } catch (ReflectiveOperationException | IOException e) {
+        throw new IllegalStateException("JIT compilation of function at "+entry+" failed", e);
+      }
+    }
+
+    private static boolean isBranch(int opcode) {
+      return opcode == SVMParser.BRANCH || opcode == SVMParser.BRANCHEQ || opcode == SVMParser.BRANCHLESSEQ;
+    }
+
+    private static final int ALOAD_0 = 0x2a, ALOAD_1 = 0x2b, LDC_W = 0x13, BIPUSH = 0x10, SIPUSH = 0x11,
+        ICONST_0 = 0x03, IFNE = 0x9a, GOTO = 0xa7, IRETURN = 0xac, RETURN = 0xb1,
+        INVOKEVIRTUAL = 0xb6, INVOKESPECIAL = 0xb7;
+
+    // JVM code being generated
+    private static class Bytecode {
+      private byte[] code = new byte[256];
+      private int length = 0;
+
+      int length() { return length; }
+
+      void u1(int b) {
+        if (length == code.length) code = Arrays.copyOf(code, 2*length);
+        code[length++] = (byte) b;
+      }
+
+      void u2(int v) { u1(v >>> 8); u1(v); }
+
+      void ldc(ClassFile cf, int v) {
+        if (v >= -1 && v <= 5) u1(ICONST_0+v);
+        else if (v >= Byte.MIN_VALUE && v <= Byte.MAX_VALUE) { u1(BIPUSH); u1(v); }
+        else if (v >= Short.MIN_VALUE && v <= Short.MAX_VALUE) { u1(SIPUSH); u2(v); }
+        else { u1(LDC_W); u2(cf.integer(v)); }
+      }
+
+      // sets the 16 bit branch offset at the given position
+      void patch(int position, int offset) {
+        code[position] = (byte) (offset >>> 8);
+        code[position+1] = (byte) offset;
+      }
+
+      byte[] bytes() { return Arrays.copyOf(code, length); }
+    }
+
+    // constant pool and layout of a class implementing Function
+    private static class ClassFile {
+      private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+      private final DataOutputStream cp = new DataOutputStream(pool);
+      private final Map<String,Integer> constants = new HashMap<>();
+      private int count = 1;
+
+      private int constant(String key, int tag, int a, int b, String utf) {
+        Integer index = constants.get(key);
+        if (index != null) return index;
+        try {
+          cp.writeByte(tag);
+          if (utf != null) cp.writeUTF(utf);
+          else if (tag == 3) cp.writeInt(a);
+          else {
+            cp.writeShort(a);
+            if (b >= 0) cp.writeShort(b);
+          }
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+        constants.put(key, count);
+        return count++;
+      }
+
+      int utf8(String s) { return constant("U"+s, 1, 0, -1, s); }
+      int integer(int v) { return constant("I"+v, 3, v, -1, null); }
+      int type(String name) { int n = utf8(name); return constant("C"+name, 7, n, -1, null); }
+
+      int method(String owner, String name, String descriptor) {
+        int c = type(owner);
+        int n = utf8(name), d = utf8(descriptor);
+        int nt = constant("N"+name+descriptor, 12, n, d, null);
+        return constant("M"+owner+"."+name+descriptor, 10, c, nt, null);
+      }
+
+      byte[] bytes(String name, Bytecode run) throws IOException {
+        int thisClass = type(name);
+        int superClass = type("java/lang/Object");
+        int function = type("svm/JitCompiler$Function");
+        int objectInit = method("java/lang/Object", "<init>", "()V");
+        int init = utf8("<init>"), initType = utf8("()V");
+        int runName = utf8("run"), runType = utf8("(Lsvm/ExecuteVM;)I");
+        int codeName = utf8("Code");
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0xCAFEBABE);
+        out.writeShort(0);
+        out.writeShort(49);
+        out.writeShort(count);
+        out.write(pool.toByteArray());
+        out.writeShort(0x0030); // final super
+        out.writeShort(thisClass);
+        out.writeShort(superClass);
+        out.writeShort(1);
+        out.writeShort(function);
+        out.writeShort(0); // fields
+        out.writeShort(2); // methods
+
+        out.writeShort(0x0001); // public <init>()V { super(); }
+        out.writeShort(init);
+        out.writeShort(initType);
+        out.writeShort(1);
+        out.writeShort(codeName);
+        out.writeInt(12+5);
+        out.writeShort(1);
+        out.writeShort(1);
+        out.writeInt(5);
+        out.writeByte(ALOAD_0);
+        out.writeByte(INVOKESPECIAL);
+        out.writeShort(objectInit);
+        out.writeByte(RETURN);
+        out.writeShort(0);
+        out.writeShort(0);
+
+        byte[] b = run.bytes(); // public int run(ExecuteVM vm)
+        out.writeShort(0x0001);
+        out.writeShort(runName);
+        out.writeShort(runType);
+        out.writeShort(1);
+        out.writeShort(codeName);
+        out.writeInt(12+b.length);
+        out.writeShort(2); // max stack: vm and one operand
+        out.writeShort(2); // max locals: this and vm
+        out.writeInt(b.length);
+        out.write(b);
+        out.writeShort(0);
+        out.writeShort(0);
+
+        out.writeShort(0); // class attributes
+        return bytes.toByteArray();
+      }
+    }
+}
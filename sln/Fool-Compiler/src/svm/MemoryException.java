@@ -0,0 +1,11 @@
+package svm;
+
+public class MemoryException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	public MemoryException(String message) {
+		super(message);
+	}
+
+}
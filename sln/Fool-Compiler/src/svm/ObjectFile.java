@@ -0,0 +1,107 @@
+package svm;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/*
+ * Binary object format of assembled SVM programs, so that a program can be run
+ * without assembling it again (and without ANTLR).
+ *
+ * All values are big-endian ints:
+ *   header:     MAGIC, VERSION, code length, number of labels, source map length (0 if absent)
+ *   code:       the resolved code words
+ *   labels:     for each label its address, the length in bytes of its name and the
+ *               UTF-8 name padded with zeros to a multiple of 4 bytes
+ *   source map: source line of the instruction starting at each code address, 0 elsewhere
+ *               (FOOL line for compiled programs, assembly line for assembled text)
+ *
+ * Loading maps the file in memory and copies the code out in bulk.
+ */
+public class ObjectFile {
+
+    public static final int MAGIC = 0x53564D4F; // "SVMO"
+    public static final int VERSION = 3; // 2: display instructions, 3: tjs (opcodes of print and halt moved)
+
+    private final int[] code;
+    private final Map<String,Integer> labels;
+    private final int[] sourceMap;
+
+    private ObjectFile(int[] code, Map<String,Integer> labels, int[] sourceMap) {
+      this.code = code;
+      this.labels = labels;
+      this.sourceMap = sourceMap;
+    }
+
+    public int[] getCode() {
+      return code;
+    }
+
+    public Map<String,Integer> getLabels() {
+      return labels;
+    }
+
+    // null if the file has no source map
+    public int[] getSourceMap() {
+      return sourceMap;
+    }
+
+    public static void write(Path file, int[] code, Map<String,Integer> labels, int[] sourceMap) throws IOException {
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(code.length);
+        out.writeInt(labels.size());
+        out.writeInt(sourceMap == null ? 0 : code.length);
+        for (int word : code) out.writeInt(word);
+        for (Map.Entry<String,Integer> label : new TreeMap<>(labels).entrySet()) {
+          byte[] name = label.getKey().getBytes(StandardCharsets.UTF_8);
+          out.writeInt(label.getValue());
+          out.writeInt(name.length);
+          out.write(name);
+          out.write(new byte[-name.length & 3]);
+        }
+        if (sourceMap != null)
+          for (int a = 0; a < code.length; a++) out.writeInt(a < sourceMap.length ? sourceMap[a] : 0);
+      }
+    }
+
+    public static ObjectFile load(Path file) throws IOException {
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        try {
+          if (buffer.getInt() != MAGIC) throw new IOException(file+" is not an SVM object file");
+          int version = buffer.getInt();
+          if (version != VERSION) throw new IOException(file+" has object format version "+version+", expected "+VERSION);
+          int codeLength = buffer.getInt();
+          int labelCount = buffer.getInt();
+          int sourceMapLength = buffer.getInt();
+
+          int[] code = new int[codeLength];
+          buffer.asIntBuffer().get(code);
+          buffer.position(buffer.position() + 4*codeLength);
+
+          Map<String,Integer> labels = new HashMap<>();
+          for (int l = 0; l < labelCount; l++) {
+            int address = buffer.getInt();
+            byte[] name = new byte[buffer.getInt()];
+            buffer.get(name);
+            buffer.position(buffer.position() + (-name.length & 3));
+            labels.put(new String(name, StandardCharsets.UTF_8), address);
+          }
+
+          int[] sourceMap = null;
+          if (sourceMapLength > 0) {
+            sourceMap = new int[sourceMapLength];
+            buffer.asIntBuffer().get(sourceMap);
+          }
+          return new ObjectFile(code, Collections.unmodifiableMap(labels), sourceMap);
+        } catch (BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException e) {
+          throw new IOException(file+" is a truncated or corrupted SVM object file", e);
+        }
+      }
+    }
+}
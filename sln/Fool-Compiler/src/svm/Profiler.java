@@ -0,0 +1,220 @@
+package svm;
+
+import java.util.*;
+
+/*
+ * Execution profile of an SVM program run by ExecuteVM.cpu(Profiler): instructions
+ * executed per opcode and, per function, calls and inclusive/exclusive instructions
+ * and wall time.
+ *
+ * Calls and returns are recognized on js: a jump to the return address of the
+ * innermost call is a return, a jump to an instruction copying fp (the first
+ * instruction of every function and method) is a call; a tail call (tjs) replaces
+ * the innermost activation, the callee returning in its place. The code outside
+ * of any function is "main". Inclusive counts of recursive functions are taken on their
+ * outermost activation only, and in the call tree recursive calls are folded into
+ * that activation, so that the tree (and the collapsed stacks) stay as small as
+ * the call graph.
+ */
+public class Profiler {
+
+    private static final String MAIN = "main";
+
+    private static class Function {
+      final String name;
+      long calls = 0;
+      long inclusive = 0, exclusive = 0;           // instructions
+      long inclusiveNanos = 0, exclusiveNanos = 0;
+      int active = 0;    // activations on the stack
+      Node activeNode;   // call tree node of the outermost activation
+
+      Function(String name) {
+        this.name = name;
+      }
+    }
+
+    // call tree: one node per call path
+    private static class Node {
+      final Function function;
+      Map<Function,Node> children;
+      long instructions = 0, nanos = 0; // exclusive
+
+      Node(Function function) {
+        this.function = function;
+      }
+
+      Node child(Function f) {
+        if (children == null) children = new LinkedHashMap<>();
+        return children.computeIfAbsent(f, g -> new Node(g));
+      }
+    }
+
+    private static class Frame {
+      final Function function;
+      final int returnAddress;
+      final Node node;
+      final long startExecuted, startNanos;
+
+      Frame(Function function, int returnAddress, Node node, long startExecuted, long startNanos) {
+        this.function = function;
+        this.returnAddress = returnAddress;
+        this.node = node;
+        this.startExecuted = startExecuted;
+        this.startNanos = startNanos;
+      }
+    }
+
+    final long[] opcodes = new long[SVMParser.HALT+1]; // counted by ExecuteVM
+
+    private final int[] code;
+    private final Map<Integer,String> names = new HashMap<>(); // function entry -> label
+    private final Map<Integer,Function> functions = new LinkedHashMap<>();
+    private final Function main = new Function(MAIN);
+    private final Node root = new Node(main);
+    private final Deque<Frame> stack = new ArrayDeque<>();
+    private Frame top;
+    private long executed = 0, lastExecuted = 0;
+    private long startNanos, lastNanos, totalNanos = 0;
+
+    public Profiler(int[] code) {
+      this(code, Collections.emptyMap());
+    }
+
+    // labels name the functions in the reports, see Assembler.getLabels() and ObjectFile.getLabels()
+    public Profiler(int[] code, Map<String,Integer> labels) {
+      this.code = code;
+      for (Map.Entry<String,Integer> label : new TreeMap<>(labels).entrySet())
+        names.putIfAbsent(label.getValue(), label.getKey());
+    }
+
+    void start() {
+      startNanos = lastNanos = System.nanoTime();
+      main.calls++;
+      main.active++;
+      main.activeNode = root;
+      stack.push(top = new Frame(main, -1, root, 0, startNanos));
+    }
+
+    // js to address, ip being the address after it; executed counts the instructions so far
+    void jump(int address, int ip, long executed) {
+      if (stack.size() > 1 && address == top.returnAddress) {
+        long now = System.nanoTime();
+        charge(executed, now);
+        exit(stack.pop(), executed, now);
+        top = stack.peek();
+      } else if (address >= 0 && address < code.length && code[address] == SVMParser.COPYFP) {
+        long now = System.nanoTime();
+        charge(executed, now);
+        Function f = functions.computeIfAbsent(address, a -> new Function(names.getOrDefault(a, "@"+a)));
+        f.calls++;
+        Node node = f.active++ > 0 ? f.activeNode : top.node.child(f);
+        if (f.active == 1) f.activeNode = node;
+        stack.push(top = new Frame(f, ip, node, executed, now));
+      }
+    }
+
+    // tjs to address: the callee replaces the innermost activation and returns to its return address
+    void tailJump(int address, long executed) {
+      if (stack.size() > 1) {
+        long now = System.nanoTime();
+        charge(executed, now);
+        Frame frame = stack.pop();
+        exit(frame, executed, now);
+        top = stack.peek();
+        jump(address, frame.returnAddress, executed);
+      }
+    }
+
+    // end of the run (halt or error): closes the activations left on the stack
+    void finish(long executed) {
+      long now = System.nanoTime();
+      charge(executed, now);
+      while (!stack.isEmpty()) exit(stack.pop(), executed, now);
+      top = null;
+      this.executed = executed;
+      totalNanos = now - startNanos;
+    }
+
+    // instructions and time since the last call or return go to the running function
+    private void charge(long executed, long now) {
+      long instructions = executed - lastExecuted, nanos = now - lastNanos;
+      top.function.exclusive += instructions;
+      top.function.exclusiveNanos += nanos;
+      top.node.instructions += instructions;
+      top.node.nanos += nanos;
+      lastExecuted = executed;
+      lastNanos = now;
+    }
+
+    private void exit(Frame frame, long executed, long now) {
+      Function f = frame.function;
+      if (--f.active == 0) {
+        f.inclusive += executed - frame.startExecuted;
+        f.inclusiveNanos += now - frame.startNanos;
+        f.activeNode = null;
+      }
+    }
+
+    public long getExecuted() {
+      return executed;
+    }
+
+    public long getExecuted(int opcode) {
+      return opcodes[opcode];
+    }
+
+    /*
+     * Collapsed stacks, one line per call path: "main;f;g weight", the weight being
+     * the instructions (or the nanoseconds) spent in the last function of the path.
+     * This is the input format of flame graph tools (e.g. flamegraph.pl).
+     */
+    public String collapsedStacks(boolean nanos) {
+      StringBuilder s = new StringBuilder();
+      Deque<Node> pending = new ArrayDeque<>();
+      Deque<String> paths = new ArrayDeque<>();
+      pending.push(root);
+      paths.push(MAIN);
+      while (!pending.isEmpty()) {
+        Node node = pending.pop();
+        String path = paths.pop();
+        long weight = nanos ? node.nanos : node.instructions;
+        if (weight > 0) s.append(path).append(' ').append(weight).append('\n');
+        if (node.children != null) {
+          List<Node> children = new ArrayList<>(node.children.values());
+          for (int c = children.size()-1; c >= 0; c--) {
+            pending.push(children.get(c));
+            paths.push(path+";"+children.get(c).function.name);
+          }
+        }
+      }
+      return s.toString();
+    }
+
+    public String report() {
+      StringBuilder s = new StringBuilder();
+      s.append(String.format("Profile: %d instructions in %.3f ms%n%n", executed, totalNanos/1e6));
+
+      s.append(String.format("%-8s %14s %7s%n", "opcode", "executed", "%"));
+      Integer[] ops = new Integer[opcodes.length];
+      for (int o = 0; o < ops.length; o++) ops[o] = o;
+      Arrays.sort(ops, (a, b) -> Long.compare(opcodes[b], opcodes[a]));
+      for (int o : ops)
+        if (opcodes[o] > 0)
+          s.append(String.format("%-8s %14d %6.2f%%%n", ThreadedCode.mnemonic(o), opcodes[o], percent(opcodes[o], executed)));
+
+      s.append(String.format("%n%-20s %10s %14s %14s %11s %11s %7s%n",
+          "function", "calls", "incl instr", "excl instr", "incl ms", "excl ms", "excl %"));
+      List<Function> all = new ArrayList<>();
+      all.add(main);
+      all.addAll(functions.values());
+      all.sort((a, b) -> Long.compare(b.exclusive, a.exclusive));
+      for (Function f : all)
+        s.append(String.format("%-20s %10d %14d %14d %11.3f %11.3f %6.2f%%%n", f.name, f.calls,
+            f.inclusive, f.exclusive, f.inclusiveNanos/1e6, f.exclusiveNanos/1e6, percent(f.exclusive, executed)));
+      return s.toString();
+    }
+
+    private static double percent(long part, long total) {
+      return total == 0 ? 0 : 100.0*part/total;
+    }
+}
@@ -0,0 +1,90 @@
+package svm;
+
+import java.util.*;
+
+/*
+ * Assembled SVM program, loaded once and run by any number of ExecuteVMs, also at
+ * the same time from different threads: it holds the code and what is derived
+ * from it (the decoded code of the threaded engines, the JIT compiler of the
+ * tiered engine and its compiled functions, the instruction index used by the
+ * budgeted loop), while the machine state of every run stays in its ExecuteVM.
+ * The derived parts are built on first use; the code is copied, so nothing can
+ * change it afterwards.
+ */
+public class Program {
+
+    final int[] code;
+    private final Map<String,Integer> labels;
+    private final int[] sourceMap; // null if none
+    final int levels; // size of the display of the VMs: 1 + the highest level in ldisp, sdisp, rdisp
+
+    private volatile ThreadedCode threaded;
+    private volatile JitCompiler jit;
+    private volatile int[] ordinal;
+
+    public Program(int[] code) {
+      this(code, Collections.emptyMap(), null);
+    }
+
+    public Program(int[] code, Map<String,Integer> labels, int[] sourceMap) {
+      this.code = code.clone();
+      this.labels = Collections.unmodifiableMap(new HashMap<>(labels));
+      this.sourceMap = sourceMap == null ? null : sourceMap.clone();
+      int levels = 0;
+      for (int a = 0; a+1 < this.code.length; a += ThreadedCode.length(this.code[a]))
+        if (this.code[a] == SVMParser.LOADDISPLAY || this.code[a] == SVMParser.SAVEDISPLAY || this.code[a] == SVMParser.RESTOREDISPLAY)
+          levels = Math.max(levels, this.code[a+1]+1);
+      this.levels = levels;
+    }
+
+    public static Program load(ObjectFile file) {
+      return new Program(file.getCode(), file.getLabels(), file.getSourceMap());
+    }
+
+    // programs of the VMs built from a bare code array: VMs running the same array share one
+    private static final Map<int[],Program> programs = Collections.synchronizedMap(new WeakHashMap<>());
+
+    static Program of(int[] code) {
+      return programs.computeIfAbsent(code, Program::new);
+    }
+
+    public int[] getCode() {
+      return code.clone();
+    }
+
+    public Map<String,Integer> getLabels() {
+      return labels;
+    }
+
+    public int[] getSourceMap() {
+      return sourceMap == null ? null : sourceMap.clone();
+    }
+
+    ThreadedCode threaded() {
+      ThreadedCode t = threaded;
+      if (t == null) threaded = t = new ThreadedCode(code); // decoding twice in a race is harmless
+      return t;
+    }
+
+    JitCompiler jit() {
+      JitCompiler j = jit;
+      if (j == null)
+        synchronized (this) {
+          if ((j = jit) == null) jit = j = new JitCompiler(code, ExecuteVM.JITTHRESHOLD);
+        }
+      return j;
+    }
+
+    // code address -> index of the instruction containing it
+    int[] ordinal() {
+      int[] o = ordinal;
+      if (o == null) {
+        o = new int[code.length];
+        int n = 0;
+        for (int a = 0; a < code.length; n++)
+          for (int end = Math.min(a+ThreadedCode.length(code[a]), code.length); a < end; a++) o[a] = n;
+        ordinal = o;
+      }
+      return o;
+    }
+}
@@ -0,0 +1,48 @@
+package svm;
+
+import java.nio.file.*;
+
+/*
+ * Runs an SVM object file written by the assembler (see ObjectFile).
+ * Usage: Run [-profile|-sample] file.svm [SWITCH|THREADED|TIERED]
+ * With -profile the program runs in the profiling interpreter: the report is
+ * printed on standard error and the collapsed stacks (weighted by instructions)
+ * are written to file.svm.collapsed.
+ * With -sample the program runs on the SWITCH engine under SamplingProfiler: the
+ * report of the hot source lines (those in the source map of the object file) is
+ * printed on standard error and the collapsed stacks are written to file.svm.collapsed.
+ * Needs neither the compiler nor ANTLR on the classpath.
+ */
+public class Run {
+    public static void main(String[] args) throws Exception {
+    	boolean profile = args.length > 0 && args[0].equals("-profile");
+    	boolean sample = args.length > 0 && args[0].equals("-sample");
+    	if (profile || sample) args = java.util.Arrays.copyOfRange(args, 1, args.length);
+    	if (args.length < 1) {
+    		System.err.println("Usage: Run [-profile|-sample] file.svm [engine]");
+    		System.exit(2);
+    	}
+    	ExecuteVM.Engine engine = args.length > 1 ? ExecuteVM.Engine.valueOf(args[1]) : ExecuteVM.Engine.SWITCH;
+    	ObjectFile program = ObjectFile.load(Paths.get(args[0]));
+    	ExecuteVM vm = new ExecuteVM(program.getCode());
+    	if (profile) {
+    		Profiler profiler = new Profiler(program.getCode(), program.getLabels());
+    		try {
+    			vm.cpu(profiler);
+    		} finally {
+    			System.err.print(profiler.report());
+    			Files.writeString(Paths.get(args[0]+".collapsed"), profiler.collapsedStacks(false));
+    		}
+    	} else if (sample) {
+    		SamplingProfiler sampler = new SamplingProfiler(vm, program.getSourceMap(), program.getLabels());
+    		sampler.start();
+    		try {
+    			vm.cpu();
+    		} finally {
+    			sampler.stop();
+    			System.err.print(sampler.report(null));
+    			Files.writeString(Paths.get(args[0]+".collapsed"), sampler.collapsedStacks());
+    		}
+    	} else vm.cpu(engine);
+    }
+}
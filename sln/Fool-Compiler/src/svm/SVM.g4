@@ -6,55 +6,85 @@ import java.util.*;
 
 @lexer::members {
 public int lexicalErrors=0;
+public java.io.PrintStream diagnostics = System.out; // where invalid chars are reported
 }
    
 @parser::members { 
-public int[] code = new int[ExecuteVM.CODESIZE];    
-private int i = 0;
-private Map<String,Integer> labelDef = new HashMap<>();
-private Map<Integer,String> labelRef = new HashMap<>();
+public Assembler assembler = new Assembler(); // set assembler.fusion before assembly() to turn fusion off
+public int[] code;
+
+/*
+ * Assembles the text in two stages: first with SLL prediction, stopping at the
+ * first syntax error, then, only if that fails, again from the start with full LL
+ * prediction and the usual error reporting. Returns the parser that assembled the
+ * code (code, assembler, number of syntax errors).
+ */
+public static SVMParser assemble(CharStream chars, boolean fusion) {
+	java.io.ByteArrayOutputStream lexical = new java.io.ByteArrayOutputStream();
+	SVMLexer lexer = new SVMLexer(chars);
+	lexer.diagnostics = new java.io.PrintStream(lexical, true);
+	lexer.removeErrorListeners();
+	SVMParser parser = new SVMParser(new CommonTokenStream(lexer));
+	parser.assembler.fusion = fusion;
+	parser.removeErrorListeners();
+	parser.setErrorHandler(new BailErrorStrategy());
+	parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+	try {
+		parser.assembly();
+		System.out.print(lexical);
+		return parser;
+	} catch (org.antlr.v4.runtime.misc.ParseCancellationException e) {
+		chars.seek(0);
+		parser = new SVMParser(new CommonTokenStream(new SVMLexer(chars)));
+		parser.assembler.fusion = fusion;
+		parser.assembly();
+		return parser;
+	}
+}
 }
 
 /*------------------------------------------------------------------
  * PARSER RULES
  *------------------------------------------------------------------*/
    
-assembly: instruction* EOF 	{ for (Integer j: labelRef.keySet()) 
-								code[j]=labelDef.get(labelRef.get(j)); 
-							} ;
+assembly: instruction* EOF 	{ code = assembler.link(); } ;
 
-instruction : 
-        PUSH n=INTEGER   {code[i++] = PUSH; 
-			              code[i++] = Integer.parseInt($n.text);}
-	  | PUSH l=LABEL    {code[i++] = PUSH; 
-	    		             labelRef.put(i++,$l.text);} 		     
-	  | POP		    {code[i++] = POP;}	
-	  | ADD		    {code[i++] = ADD;}
-	  | SUB		    {code[i++] = SUB;}
-	  | MULT	    {code[i++] = MULT;}
-	  | DIV		    {code[i++] = DIV;}
-	  | STOREW	  {code[i++] = STOREW;} //
-	  | LOADW           {code[i++] = LOADW;} //
-	  | l=LABEL COL     {labelDef.put($l.text,i);}
-	  | BRANCH l=LABEL  {code[i++] = BRANCH;
-                       labelRef.put(i++,$l.text);}
-	  | BRANCHEQ l=LABEL {code[i++] = BRANCHEQ;
-                        labelRef.put(i++,$l.text);}
-	  | BRANCHLESSEQ l=LABEL {code[i++] = BRANCHLESSEQ;
-                          labelRef.put(i++,$l.text);}
-	  | JS              {code[i++] = JS;}		     //
-	  | LOADRA          {code[i++] = LOADRA;}    //
-	  | STORERA         {code[i++] = STORERA;}   //
-	  | LOADTM          {code[i++] = LOADTM;}   
-	  | STORETM         {code[i++] = STORETM;}   
-	  | LOADFP          {code[i++] = LOADFP;}   //
-	  | STOREFP         {code[i++] = STOREFP;}   //
-	  | COPYFP          {code[i++] = COPYFP;}   //
-	  | LOADHP          {code[i++] = LOADHP;}   //
-	  | STOREHP         {code[i++] = STOREHP;}   //
-	  | PRINT           {code[i++] = PRINT;}
-	  | HALT            {code[i++] = HALT;}
-	  ;
+instruction : {int line = $start.getLine();}
+	  ( 
+        PUSH n=INTEGER   {assembler.instruction(PUSH, Integer.parseInt($n.text), line);}
+	  | PUSH l=LABEL    {assembler.instruction(PUSH, $l.text, line);} 		     
+	  | POP		    {assembler.instruction(POP, line);}	
+	  | ADD		    {assembler.instruction(ADD, line);}
+	  | SUB		    {assembler.instruction(SUB, line);}
+	  | MULT	    {assembler.instruction(MULT, line);}
+	  | DIV		    {assembler.instruction(DIV, line);}
+	  | STOREW	  {assembler.instruction(STOREW, line);} //
+	  | LOADW           {assembler.instruction(LOADW, line);} //
+	  | l=LABEL COL     {assembler.label($l.text);}
+	  | BRANCH l=LABEL  {assembler.instruction(BRANCH, $l.text, line);}
+	  | BRANCHEQ l=LABEL {assembler.instruction(BRANCHEQ, $l.text, line);}
+	  | BRANCHLESSEQ l=LABEL {assembler.instruction(BRANCHLESSEQ, $l.text, line);}
+	  | JS              {assembler.instruction(JS, line);}		     //
+	  | TAILJS n=INTEGER {assembler.instruction(TAILJS, Integer.parseInt($n.text), line);}
+	  | LOADRA          {assembler.instruction(LOADRA, line);}    //
+	  | STORERA         {assembler.instruction(STORERA, line);}   //
+	  | LOADTM          {assembler.instruction(LOADTM, line);}   
+	  | STORETM         {assembler.instruction(STORETM, line);}   
+	  | LOADFP          {assembler.instruction(LOADFP, line);}   //
+	  | STOREFP         {assembler.instruction(STOREFP, line);}   //
+	  | COPYFP          {assembler.instruction(COPYFP, line);}   //
+	  | LOADHP          {assembler.instruction(LOADHP, line);}   //
+	  | STOREHP         {assembler.instruction(STOREHP, line);}   //
+	  | NEW             {assembler.instruction(NEW, line);}
+	  | LOADLOCAL n=INTEGER {assembler.instruction(LOADLOCAL, Integer.parseInt($n.text), line);}
+	  | DUP             {assembler.instruction(DUP, line);}
+	  | HPINC           {assembler.instruction(HPINC, line);}
+	  | LOADDISPLAY n=INTEGER {assembler.instruction(LOADDISPLAY, Integer.parseInt($n.text), line);}
+	  | SAVEDISPLAY n=INTEGER {assembler.instruction(SAVEDISPLAY, Integer.parseInt($n.text), line);}
+	  | RESTOREDISPLAY n=INTEGER {assembler.instruction(RESTOREDISPLAY, Integer.parseInt($n.text), line);}
+	  | PRINT           {assembler.instruction(PRINT, line);}
+	  | HALT            {assembler.instruction(HALT, line);}
+	  ) ;
 	  
 /*------------------------------------------------------------------
  * LEXER RULES
@@ -81,6 +111,14 @@ STOREFP	 : 'sfp' ;
 COPYFP   : 'cfp' ;      
 LOADHP	 : 'lhp' ;	
 STOREHP	 : 'shp' ;	
+NEW	 : 'new' ;	
+LOADLOCAL: 'lloc' ;	
+DUP	 : 'dup' ;	
+HPINC	 : 'ihp' ;	
+LOADDISPLAY: 'ldisp' ;	
+SAVEDISPLAY: 'sdisp' ;	
+RESTOREDISPLAY: 'rdisp' ;	
+TAILJS	 : 'tjs' ;	
 PRINT	 : 'print' ;	
 HALT	 : 'halt' ;	
  
@@ -92,5 +130,5 @@ COMMENT : '/*' .*? '*/' -> channel(HIDDEN) ;
 
 WHITESP  : (' '|'\t'|'\n'|'\r')+ -> channel(HIDDEN) ;
 
-ERR	     : . { System.out.println("Invalid char: "+getText()+" at line "+getLine()); lexicalErrors++; } -> channel(HIDDEN); 
+ERR	     : . { diagnostics.println("Invalid char: "+getText()+" at line "+getLine()); lexicalErrors++; } -> channel(HIDDEN); 
 
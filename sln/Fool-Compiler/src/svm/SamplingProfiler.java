@@ -0,0 +1,187 @@
+package svm;
+
+import java.util.*;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Sampling profiler: a daemon thread reads the registers of a running ExecuteVM at
+ * regular intervals and charges each sample to the source line of the instruction
+ * being executed (through the source map of the assembler: FOOL lines for compiled
+ * programs) and to the chain of functions being called.
+ * Nothing is added to the interpreter loop, so the program runs at full speed; the
+ * registers are read without synchronization and the profile is statistical, a
+ * call chain that cannot be walked is truncated. Only the SWITCH engine keeps ip in
+ * the VM between instructions, the other engines keep it in local variables.
+ *
+ * The call chain is walked through the frames: in a function fp points to the access
+ * link, the return address is at fp-1 and the control link (fp of the caller) is
+ * after the parameters, at fp+params+1. The number of parameters of a function is
+ * read from its epilogue: sra; pop; one pop per parameter; sfp.
+ */
+public class SamplingProfiler {
+
+    public static final int INTERVAL = 1000; // default sampling interval (microseconds)
+    private static final int MAXDEPTH = 4096; // frames walked per sample
+    private static final String MAIN = "main";
+
+    private final ExecuteVM vm;
+    private final int[] code;
+    private final int[] sourceMap;      // null if the program has none
+    private final long intervalNanos;
+    private final int[] start;          // code address -> address of the instruction containing it
+    private final int[] entries;        // function entry addresses, in order
+    private final int[] params;         // number of parameters of each function
+    private final String[] names;       // name of each function
+
+    private final Map<String,Long> stacks = new HashMap<>(); // collapsed call chain -> samples
+    private final Map<Integer,Long> lines = new TreeMap<>(); // source line -> samples
+    private final Map<String,long[]> functions = new HashMap<>(); // name -> {self, total} samples
+    private long samples = 0, truncated = 0;
+    private final int[] chain = new int[MAXDEPTH]; // addresses of the instructions running in the frames of a sample
+
+    private volatile boolean running;
+    private Thread thread;
+
+    public SamplingProfiler(ExecuteVM vm, int[] sourceMap, Map<String,Integer> labels) {
+      this(vm, sourceMap, labels, INTERVAL);
+    }
+
+    public SamplingProfiler(ExecuteVM vm, int[] sourceMap, Map<String,Integer> labels, int intervalMicros) {
+      this.vm = vm;
+      this.code = vm.getCode();
+      this.sourceMap = sourceMap;
+      this.intervalNanos = 1000L*intervalMicros;
+      Map<Integer,String> labelAt = new HashMap<>();
+      for (Map.Entry<String,Integer> label : new TreeMap<>(labels).entrySet())
+        labelAt.putIfAbsent(label.getValue(), label.getKey());
+
+      start = new int[code.length];
+      List<Integer> found = new ArrayList<>();
+      for (int a = 0; a < code.length; a += ThreadedCode.length(code[a])) {
+        for (int w = a; w < Math.min(a+ThreadedCode.length(code[a]), code.length); w++) start[w] = a;
+        if (code[a] == SVMParser.COPYFP) found.add(a);
+      }
+      entries = new int[found.size()];
+      params = new int[found.size()];
+      names = new String[found.size()];
+      for (int f = 0; f < entries.length; f++) {
+        int entry = entries[f] = found.get(f);
+        params[f] = countParams(entry);
+        String name = labelAt.getOrDefault(entry, "@"+entry);
+        int line = line(entry);
+        names[f] = line > 0 ? name+":"+line : name;
+      }
+    }
+
+    // pops between "sra; pop" and "sfp" in the epilogue of the function, -1 if not found
+    private int countParams(int entry) {
+      int a = entry + 1;
+      while (a < code.length && code[a] != SVMParser.STORERA && code[a] != SVMParser.COPYFP) a += ThreadedCode.length(code[a]);
+      if (a >= code.length || code[a] != SVMParser.STORERA) return -1;
+      int n = -1; // the first pop removes the access link
+      for (a++; a < code.length && code[a] == SVMParser.POP; a++) n++;
+      return a < code.length && code[a] == SVMParser.STOREFP && n >= 0 ? n : -1;
+    }
+
+    private int line(int address) {
+      return sourceMap != null && address < sourceMap.length ? sourceMap[address] : 0;
+    }
+
+    // index of the function containing the instruction, -1 for the main program
+    private int function(int address) {
+      int f = Arrays.binarySearch(entries, address);
+      return f >= 0 ? f : -f-2;
+    }
+
+    public void start() {
+      running = true;
+      thread = new Thread(() -> {
+        while (running) {
+          LockSupport.parkNanos(intervalNanos);
+          if (running) sample();
+        }
+      }, "SVM sampler");
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    public void stop() throws InterruptedException {
+      running = false;
+      thread.join();
+    }
+
+    private void sample() {
+      int ip = vm.sampleIp() - 1, fp = vm.sampleFp();
+      if (ip < 0 || ip >= code.length) return;
+      int depth = 0;
+      chain[depth++] = start[ip];
+      int f = function(start[ip]);
+      while (f >= 0 && depth < MAXDEPTH) {
+        int ret = vm.sampleStack(fp-1);
+        int caller = params[f] >= 0 ? vm.sampleStack(fp+params[f]+1) : 0;
+        if (params[f] < 0 || ret < 1 || ret >= code.length || start[ret-1] != ret-1 || code[ret-1] != SVMParser.JS) break;
+        chain[depth++] = ret-1;
+        fp = caller;
+        f = function(ret-1);
+      }
+      samples++;
+      if (f >= 0) truncated++;
+
+      int line = line(chain[0]);
+      lines.merge(line, 1L, Long::sum);
+      StringBuilder stack = new StringBuilder(f >= 0 ? "..." : MAIN);
+      Set<String> seen = new HashSet<>();
+      for (int d = depth-1; d >= 0; d--) {
+        int g = function(chain[d]);
+        String name = g >= 0 ? names[g] : MAIN;
+        if (d < depth-1 || g >= 0) stack.append(';').append(name);
+        long[] counts = functions.computeIfAbsent(name, n -> new long[2]);
+        if (d == 0) counts[0]++;
+        if (seen.add(name)) counts[1]++;
+      }
+      stacks.merge(stack.toString(), 1L, Long::sum);
+    }
+
+    public long getSamples() {
+      return samples;
+    }
+
+    // collapsed stacks weighted by samples, "..." standing for the frames not walked
+    public String collapsedStacks() {
+      StringBuilder s = new StringBuilder();
+      for (Map.Entry<String,Long> stack : new TreeMap<>(stacks).entrySet())
+        s.append(stack.getKey()).append(' ').append(stack.getValue()).append('\n');
+      return s.toString();
+    }
+
+    /*
+     * Hot source lines and functions; source holds the lines of the source
+     * (may be null), line 0 collects the instructions with no line.
+     */
+    public String report(List<String> source) {
+      StringBuilder s = new StringBuilder();
+      s.append(String.format("Sampling profile: %d samples every %d us, %d with truncated call chain%n%n",
+          samples, intervalNanos/1000, truncated));
+
+      s.append(String.format("%6s %9s %7s  %s%n", "line", "samples", "%", "source"));
+      List<Map.Entry<Integer,Long>> hot = new ArrayList<>(lines.entrySet());
+      hot.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+      for (Map.Entry<Integer,Long> l : hot) {
+        int line = l.getKey();
+        String text = source != null && line > 0 && line <= source.size() ? source.get(line-1).trim() : "";
+        s.append(String.format("%6d %9d %6.2f%%  %s%n", line, l.getValue(), percent(l.getValue()), text));
+      }
+
+      s.append(String.format("%n%-24s %9s %7s %9s %7s%n", "function", "self", "%", "total", "%"));
+      List<Map.Entry<String,long[]>> all = new ArrayList<>(functions.entrySet());
+      all.sort((a, b) -> Long.compare(b.getValue()[0], a.getValue()[0]));
+      for (Map.Entry<String,long[]> f : all)
+        s.append(String.format("%-24s %9d %6.2f%% %9d %6.2f%%%n", f.getKey(),
+            f.getValue()[0], percent(f.getValue()[0]), f.getValue()[1], percent(f.getValue()[1])));
+      return s.toString();
+    }
+
+    private double percent(long n) {
+      return samples == 0 ? 0 : 100.0*n/samples;
+    }
+}
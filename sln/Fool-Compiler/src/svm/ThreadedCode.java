@@ -0,0 +1,129 @@
+package svm;
+
+/*
+ * Program decoded once for the threaded engine of ExecuteVM.
+ *
+ * Every instruction becomes one entry of the parallel arrays op/arg: the operand
+ * is inlined next to the opcode and branch targets are already translated into
+ * instruction indexes, so the engine never looks at the original code again.
+ * While decoding, the idioms "push k; add; lw" and "push k; add" (field and
+ * offset accesses) are turned into the single entries LOADOFF k and ADDI k,
+ * unless some jump may land in the middle of them.
+ *
+ * The code addresses are still the ones seen by the program (return addresses,
+ * function labels pushed on the stack), addr/index translate between the two.
+ */
+class ThreadedCode {
+
+    // decoded-only opcodes, never produced by the assembler
+    static final int LOADOFF = -1; // push k; add; lw
+    static final int ADDI = -2;    // push k; add
+
+    final int[] op;
+    final int[] arg;
+    final int[] addr;  // instruction index -> code address
+    final int[] index; // code address -> instruction index, -1 inside an instruction
+
+    ThreadedCode(int[] code) {
+      index = new int[code.length+1];
+      java.util.Arrays.fill(index, -1);
+      // code addresses where execution may start: jump targets, return addresses
+      // and every pushed value that could be a function or method label
+      boolean[] target = new boolean[code.length+1];
+      target[0] = target[code.length] = true;
+      for (int a = 0; a < code.length; a += length(code[a])) {
+        if (length(code[a]) == 2 && code[a+1] >= 0 && code[a+1] <= code.length) target[code[a+1]] = true;
+        if (code[a] == SVMParser.JS) target[a+1] = true;
+      }
+
+      int[] op = new int[code.length], arg = new int[code.length], addr = new int[code.length+1];
+      int n = 0;
+      for (int a = 0; a < code.length; n++) {
+        index[a] = n;
+        addr[n] = a;
+        if (code[a] == SVMParser.PUSH && fusible(code, target, a+2, SVMParser.ADD)) {
+          arg[n] = code[a+1];
+          if (fusible(code, target, a+3, SVMParser.LOADW)) {
+            op[n] = LOADOFF;
+            a += 4;
+          } else {
+            op[n] = ADDI;
+            a += 3;
+          }
+          continue;
+        }
+        op[n] = code[a];
+        if (length(code[a]) == 2) arg[n] = code[a+1];
+        a += length(code[a]);
+      }
+      index[code.length] = n;
+      addr[n] = code.length;
+
+      for (int j = 0; j < n; j++)
+        if (op[j] == SVMParser.BRANCH || op[j] == SVMParser.BRANCHEQ || op[j] == SVMParser.BRANCHLESSEQ)
+          arg[j] = index[arg[j]];
+      this.op = java.util.Arrays.copyOf(op, n);
+      this.arg = java.util.Arrays.copyOf(arg, n);
+      this.addr = java.util.Arrays.copyOf(addr, n+1);
+    }
+
+    private static boolean fusible(int[] code, boolean[] target, int a, int opcode) {
+      return a < code.length && code[a] == opcode && !target[a];
+    }
+
+    // number of code words of an instruction
+    static int length(int opcode) {
+      switch (opcode) {
+        case SVMParser.PUSH:
+        case SVMParser.LOADLOCAL:
+        case SVMParser.LOADDISPLAY:
+        case SVMParser.SAVEDISPLAY:
+        case SVMParser.RESTOREDISPLAY:
+        case SVMParser.TAILJS:
+        case SVMParser.BRANCH:
+        case SVMParser.BRANCHEQ:
+        case SVMParser.BRANCHLESSEQ:
+          return 2;
+        default:
+          return 1;
+      }
+    }
+
+    // assembly name of an opcode (kept here, and not taken from SVMLexer, so that running needs no ANTLR)
+    static String mnemonic(int opcode) {
+      switch (opcode) {
+        case SVMParser.PUSH: return "push";
+        case SVMParser.POP: return "pop";
+        case SVMParser.ADD: return "add";
+        case SVMParser.SUB: return "sub";
+        case SVMParser.MULT: return "mult";
+        case SVMParser.DIV: return "div";
+        case SVMParser.STOREW: return "sw";
+        case SVMParser.LOADW: return "lw";
+        case SVMParser.BRANCH: return "b";
+        case SVMParser.BRANCHEQ: return "beq";
+        case SVMParser.BRANCHLESSEQ: return "bleq";
+        case SVMParser.JS: return "js";
+        case SVMParser.LOADRA: return "lra";
+        case SVMParser.STORERA: return "sra";
+        case SVMParser.LOADTM: return "ltm";
+        case SVMParser.STORETM: return "stm";
+        case SVMParser.LOADFP: return "lfp";
+        case SVMParser.STOREFP: return "sfp";
+        case SVMParser.COPYFP: return "cfp";
+        case SVMParser.LOADHP: return "lhp";
+        case SVMParser.STOREHP: return "shp";
+        case SVMParser.NEW: return "new";
+        case SVMParser.LOADLOCAL: return "lloc";
+        case SVMParser.DUP: return "dup";
+        case SVMParser.HPINC: return "ihp";
+        case SVMParser.LOADDISPLAY: return "ldisp";
+        case SVMParser.SAVEDISPLAY: return "sdisp";
+        case SVMParser.RESTOREDISPLAY: return "rdisp";
+        case SVMParser.TAILJS: return "tjs";
+        case SVMParser.PRINT: return "print";
+        case SVMParser.HALT: return "halt";
+        default: return "?"+opcode;
+      }
+    }
+}